@@ -71,7 +71,7 @@ public class AtlasPlugin
         
         AtlasIndex atlasIndex = AtlasIndex.instance();
         log.info( "Index size: " + byteCountToDisplaySize( atlasIndex.sizeInByte() ) );
-        if (atlasIndex.index().isEmpty()) {
+        if (atlasIndex.needsUpdate()) {
             atlasIndex.update();
         }
         
@@ -16,6 +16,12 @@ package org.polymap.p4.atlas;
 
 import static org.polymap.core.data.DataPlugin.ff;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.geotools.data.Query;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.filter.Filter;
@@ -43,6 +49,12 @@ public class LayerQueryBuilder {
     @Concern( PropertyChangeEvent.Fire.class )
     public Config<ReferencedEnvelope>   mapExtent;
 
+    /**
+     * Cached {@link #fulltextFilter(ILayer)}s keyed by layer id. Prevents the
+     * index from being queried for every tile that is rendered.
+     */
+    private ConcurrentMap<String,CachedFilter> fulltextFilters = new ConcurrentHashMap();
+
 
     /** Constructs a new instance with no restrictions. */
     protected LayerQueryBuilder() {
@@ -78,9 +90,70 @@ public class LayerQueryBuilder {
         Filter textFilter = Filter.INCLUDE;
         if (queryText.isPresent() && mapExtent.isPresent()) {
             AtlasIndex index = AtlasIndex.instance();
-            textFilter = index.query( queryText.get(), layer );
+            String text = queryText.get();
+            long generation = index.generation();
+            // compute() just installs the (not yet done) entry; the index is queried
+            // outside the lock of the map by the first caller, concurrent (tile)
+            // requests for the same layer wait for its result
+            CachedFilter cached = fulltextFilters.compute( (String)layer.id(), (key, current) -> 
+                    current != null && current.isValid( text, generation ) 
+                            ? current : new CachedFilter( text, generation ) );
+            if (cached.claimed.compareAndSet( false, true )) {
+                try {
+                    cached.filter.complete( index.query( text, layer ) );
+                }
+                catch (Exception e) {
+                    fulltextFilters.remove( (String)layer.id(), cached );
+                    cached.filter.completeExceptionally( e );
+                    throw e;
+                }
+            }
+            try {
+                textFilter = cached.filter.get();
+            }
+            catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+            }
         }
         return textFilter;
     }
     
+    
+    /**
+     * True if the {@link #fulltextFilter(ILayer)} of the given layer does not
+     * contain all the features that match the {@link #queryText}.
+     * 
+     * @see AtlasIndex#isTruncated(Filter)
+     */
+    public boolean isTruncated( ILayer layer ) {
+        CachedFilter cached = fulltextFilters.get( (String)layer.id() );
+        return cached != null && AtlasIndex.instance().isTruncated( cached.filter.getNow( null ) );
+    }
+    
+    
+    /**
+     * Result of {@link AtlasIndex#query(String, ILayer)} for a given query text
+     * and {@link AtlasIndex#generation()}.
+     */
+    protected static class CachedFilter {
+        
+        public String       queryText;
+        
+        public long         generation;
+        
+        /** Completed by the caller that has {@link #claimed} the query. */
+        public CompletableFuture<Filter> filter = new CompletableFuture();
+        
+        public AtomicBoolean claimed = new AtomicBoolean();
+
+        public CachedFilter( String queryText, long generation ) {
+            this.queryText = queryText;
+            this.generation = generation;
+        }
+        
+        public boolean isValid( String currentQueryText, long currentGeneration ) {
+            return queryText.equals( currentQueryText ) && generation == currentGeneration;
+        }
+    }
+    
 }
@@ -14,43 +14,67 @@
  */
 package org.polymap.p4.atlas.index;
 
-import java.util.ArrayList;
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import java.io.File;
 import java.io.IOException;
 
+import org.geotools.data.FeatureEvent;
 import org.geotools.data.FeatureSource;
 import org.json.JSONObject;
 import org.opengis.feature.Feature;
 import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
 import org.opengis.filter.identity.FeatureId;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.collect.FluentIterable;
+
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
+
 import org.polymap.core.CorePlugin;
 import org.polymap.core.data.DataPlugin;
 import org.polymap.core.project.ILayer;
 import org.polymap.core.runtime.FutureJobAdapter;
 import org.polymap.core.runtime.Lazy;
 import org.polymap.core.runtime.LockedLazyInit;
+import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
 import org.polymap.core.runtime.session.DefaultSessionContext;
 import org.polymap.core.runtime.session.DefaultSessionContextProvider;
 import org.polymap.core.runtime.session.SessionContext;
 
 import org.polymap.rhei.fulltext.FulltextIndex;
-import org.polymap.rhei.fulltext.indexing.FeatureTransformer;
 import org.polymap.rhei.fulltext.indexing.LowerCaseTokenFilter;
-import org.polymap.rhei.fulltext.indexing.ToStringTransformer;
 import org.polymap.rhei.fulltext.store.lucene.LuceneFulltextIndex;
 
 import org.polymap.p4.atlas.AtlasPlugin;
+import org.polymap.p4.layer.FeatureLayer;
+import org.polymap.p4.layer.FulltextFeatureTransformer;
+import org.polymap.p4.layer.FulltextQueries;
 
 /**
  * Provides a {@link FulltextIndex} of the content of the features of all Atlas
@@ -58,7 +82,8 @@ import org.polymap.p4.atlas.AtlasPlugin;
  *
  * @author Falko Bräutigam
  */
-public class AtlasIndex {
+public class AtlasIndex
+        extends Configurable {
 
     private static final Log log = LogFactory.getLog( AtlasIndex.class );
     
@@ -70,12 +95,41 @@ public class AtlasIndex {
         return instance.get();
     }
     
+    /** The field that stores the {@link #layerKey(ILayer)} of the indexed features. */
+    public static final String          FIELD_LAYER = "_layer_";
+    
+    /** The field that stores the name of the type of the indexed features. */
+    public static final String          FIELD_FEATURE_TYPE = "_featureType_";
+    
+    /** 
+     * Marks a layer in {@link #dirty} to be re-indexed completely because the
+     * changed features of a commit could not be determined.
+     */
+    static final Set<String>            ALL_FEATURES = Collections.unmodifiableSet( new HashSet() );
+    
+    /** Delay before the features of a failed {@link FeatureIndexer} run are retried. */
+    public static final long            RETRY_DELAY = 60 * 1000;
+    
+    /** 
+     * The version of the content of the index. An index written with another
+     * version (or without {@link #FIELD_LAYER}) is re-indexed on startup.
+     */
+    static final String                 FORMAT = "2";
+    
     
     // instance ******************************************
     
+    /** The maximum number of features returned by {@link #query(String, ILayer)}. */
+    @Mandatory
+    @DefaultInt( 10000 )
+    public Config<Integer>              maxResults;
+    
     private LuceneFulltextIndex         index;
     
-    private List<FeatureTransformer>    transformers = new ArrayList();
+    /** Stores the {@link #FORMAT} of the index. */
+    private File                        formatFile;
+    
+    private FulltextFeatureTransformer  transformer = new FulltextFeatureTransformer();
     
     private AtomicReference<MapIndexer> mapIndexer = new AtomicReference();
 
@@ -83,17 +137,38 @@ public class AtlasIndex {
 
     private DefaultSessionContextProvider contextProvider;
     
+    /** The ids of the committed but not yet indexed features, keyed by layer id. */
+    private ConcurrentMap<String,Set<String>> dirty = new ConcurrentHashMap();
+    
+    private AtomicReference<FeatureIndexer> featureIndexer = new AtomicReference();
+    
+    private AtomicLong                  generation = new AtomicLong();
+    
+    /** 
+     * Scheduling rule of the jobs that write the index; makes sure that
+     * {@link MapIndexer} and {@link FeatureIndexer} never run concurrently. 
+     */
+    ISchedulingRule                     updateRule = new ISchedulingRule() {
+        @Override
+        public boolean isConflicting( ISchedulingRule rule ) {
+            return rule == this;
+        }
+        @Override
+        public boolean contains( ISchedulingRule rule ) {
+            return rule == this;
+        }
+    };
+    
     
     protected AtlasIndex() {
+        ConfigurationFactory.inject( this );
         // Lucene index
         try {
             File indexDir = new File( CorePlugin.getDataLocation( AtlasPlugin.instance() ), "index" );
+            formatFile = new File( indexDir.getParentFile(), "index.format" );
             index = new LuceneFulltextIndex( indexDir );
             index.setTokenizer( new AtlasTokenizer() );
             index.addTokenFilter( new LowerCaseTokenFilter() );
-            
-            transformers.add( new AtlasFeatureTransformer() );
-            transformers.add( new ToStringTransformer() );            
         }
         catch (IOException e) {
             throw new RuntimeException( e );
@@ -109,6 +184,11 @@ public class AtlasIndex {
             }
         };
         SessionContext.addProvider( contextProvider );
+        
+        // listen to feature commits of all sessions
+        EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev -> 
+                ev.getType() == FeatureEvent.Type.COMMIT &&
+                FeatureLayer.layerIdOf( ev.getFeatureSource() ).isPresent() ) );
     }
     
     
@@ -122,8 +202,56 @@ public class AtlasIndex {
     }
     
     
+    /**
+     * True if the index is empty or was written by a version that did not store
+     * the current {@link #FORMAT}, so that {@link #update()} is needed before
+     * {@link #query(String, ILayer)} can find anything.
+     */
+    public boolean needsUpdate() {
+        try {
+            return index.isEmpty() || !formatFile.exists() 
+                    || !FORMAT.equals( FileUtils.readFileToString( formatFile, "UTF-8" ).trim() );
+        }
+        catch (IOException e) {
+            log.warn( "", e );
+            return true;
+        }
+    }
+    
+    
+    /**
+     * Called by {@link MapIndexer} after all layers have been indexed completely.
+     */
+    void formatUpdated() throws IOException {
+        FileUtils.writeStringToFile( formatFile, FORMAT, "UTF-8" );
+    }
+    
+    
+    /**
+     * The generation of the index content. This is incremented every time the
+     * index is updated. Allows to check if results of
+     * {@link #query(String, ILayer)} are outdated.
+     */
+    public long generation() {
+        return generation.get();
+    }
+    
+    
+    /**
+     * Called by the indexer jobs after an update was applied. 
+     */
+    void updated() {
+        generation.incrementAndGet();
+    }
+    
+    
     /**
      * Query this index. 
+     * <p/>
+     * The query is restricted to the features of the given layer. The number of
+     * features is limited by {@link #maxResults}; callers can check
+     * {@link #isTruncated(Filter)} to tell the user that not all features are
+     * found.
      *
      * @param query The Lucene query string.
      * @param layer The layer to query.
@@ -133,9 +261,14 @@ public class AtlasIndex {
     public Filter query( String query, ILayer layer ) throws Exception {
         Filter filter = Filter.INCLUDE;
         if (!StringUtils.isBlank( query )) {
-            Set<FeatureId> fids = FluentIterable.from( index.search( query, -1 ) )
+            // the query is enclosed in a group it cannot break out of
+            String layerQuery = "+" + FIELD_LAYER + ":" + layerKey( layer ) + " +" + FulltextQueries.group( query );
+            Set<FeatureId> fids = FluentIterable.from( index.search( layerQuery, maxResults.get() ) )
                     .transform( json -> DataPlugin.ff.featureId( json.getString( FulltextIndex.FIELD_ID ) ) )
                     .toSet();
+            if (fids.size() >= maxResults.get()) {
+                log.warn( "Max results reached: " + layer.label.get() + " -- " + query );
+            }
             filter = !fids.isEmpty() ? DataPlugin.ff.id( fids ) : Filter.EXCLUDE;
         }
         return filter;
@@ -143,11 +276,42 @@ public class AtlasIndex {
     
     
     /**
-     * 
+     * True if the given result of {@link #query(String, ILayer)} was cut at
+     * {@link #maxResults}.
+     */
+    public boolean isTruncated( Filter filter ) {
+        return filter instanceof Id && ((Id)filter).getIDs().size() >= maxResults.get();
+    }
+    
+    
+    /**
+     * The ids of all features of the given layer currently in the index.
+     */
+    protected Set<String> layerFids( ILayer layer ) throws Exception {
+        return FluentIterable.from( index.search( FIELD_LAYER + ":" + layerKey( layer ), -1 ) )
+                .transform( json -> json.getString( FulltextIndex.FIELD_ID ) )
+                .toSet();
+    }
+    
+    
+    /**
+     * The value of the {@link #FIELD_LAYER} of the features of the given layer.
+     * The id is encoded as {@link FulltextQueries#token(String) token} of lower
+     * case letters and digits, so that it is kept as one single token by
+     * {@link AtlasTokenizer} and {@link LowerCaseTokenFilter} and different ids
+     * never have the same key.
+     */
+    protected String layerKey( ILayer layer ) {
+        return FulltextQueries.token( (String)layer.id() );
+    }
+    
+    
+    /**
+     * Completely re-indexes all Atlas layers.
      */
     public Future update() {
         MapIndexer job = mapIndexer.updateAndGet( current -> {
-            if (current == null) {
+            if (current == null || current.getState() == Job.NONE) {
                 try {
                     sessionProvider.mapContext( updateContext.getSessionKey(), true );
                     current = new MapIndexer( this );
@@ -163,12 +327,100 @@ public class AtlasIndex {
     }
     
     
-    protected JSONObject transform( Feature feature ) {
-        Object result = feature;
-        for (FeatureTransformer transformer : transformers) {
-            result = transformer.apply( result );
+    /**
+     * Collects the ids of the features committed in any session and triggers
+     * {@link #updateDirty()}. Just the changed features are re-indexed instead of
+     * a complete {@link #update()}.
+     */
+    @EventHandler( delay=1000, scope=Event.Scope.JVM )
+    protected void onFeatureCommit( List<FeatureEvent> evs ) {
+        for (FeatureEvent ev : evs) {
+            String layerId = FeatureLayer.layerIdOf( ev.getFeatureSource() ).get();
+            Filter filter = ev.getFilter();
+            Set<String> fids = ALL_FEATURES;
+            if (filter instanceof Id) {
+                fids = new HashSet();
+                for (Object fid : ((Id)filter).getIDs()) {
+                    fids.add( fid.toString() );
+                }
+            }
+            mergeDirty( layerId, fids );
         }
-        return (JSONObject)result;
+        updateDirty();
+    }
+    
+    
+    protected void mergeDirty( String layerId, Set<String> fids ) {
+        dirty.merge( layerId, fids, (s1, s2) -> {
+            if (s1 == ALL_FEATURES || s2 == ALL_FEATURES) {
+                return ALL_FEATURES;
+            }
+            Set<String> result = new HashSet( s1 );
+            result.addAll( s2 );
+            return result;
+        });
+    }
+    
+    
+    /**
+     * Indexes the features that have been committed since last update.
+     */
+    public Future updateDirty() {
+        return updateDirty( 0 );
+    }
+    
+    
+    /**
+     * Merges the given features, {@link #drainDirty() drained} by a
+     * {@link FeatureIndexer} that failed or was canceled, back into {@link #dirty}
+     * and retries after {@link #RETRY_DELAY}.
+     */
+    void retryDirty( Map<String,Set<String>> drained ) {
+        drained.forEach( (layerId, fids) -> mergeDirty( layerId, fids ) );
+        updateDirty( RETRY_DELAY );
+    }
+    
+    
+    protected Future updateDirty( long delay ) {
+        FeatureIndexer job = featureIndexer.updateAndGet( current -> {
+            if (current == null || current.getState() != Job.WAITING) {
+                try {
+                    sessionProvider.mapContext( updateContext.getSessionKey(), true );
+                    current = new FeatureIndexer( this );
+                    current.schedule( delay );
+                }
+                finally {
+                    sessionProvider.unmapContext();
+                }
+            }
+            return current;
+        });
+        return new FutureJobAdapter( job );
+    }
+    
+    
+    /**
+     * Removes and returns the currently {@link #dirty} features.
+     *
+     * @return Feature ids keyed by layer id; {@link #ALL_FEATURES} signals that the
+     *         entire layer has to be re-indexed.
+     */
+    Map<String,Set<String>> drainDirty() {
+        Map<String,Set<String>> result = new HashMap();
+        for (String layerId : dirty.keySet()) {
+            Set<String> fids = dirty.remove( layerId );
+            if (fids != null) {
+                result.put( layerId, fids );
+            }
+        }
+        return result;
+    }
+    
+    
+    protected JSONObject transform( Feature feature, ILayer layer ) {
+        return transformer.transform( feature )
+                .put( FIELD_FEATURE_TYPE, feature.getType().getName().getLocalPart() )
+                .put( FIELD_LAYER, layerKey( layer ) );
     }
     
 }
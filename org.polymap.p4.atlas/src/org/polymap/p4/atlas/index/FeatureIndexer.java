@@ -0,0 +1,150 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.atlas.index;
+
+import static org.polymap.core.data.DataPlugin.ff;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.geotools.data.FeatureSource;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.Feature;
+import org.opengis.filter.identity.FeatureId;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.UIJob;
+
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex;
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
+
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.p4.atlas.AtlasFeatureLayer;
+import org.polymap.p4.layer.FeatureLayer;
+import org.polymap.p4.project.ProjectRepository;
+
+/**
+ * Incrementally updates the {@link AtlasIndex} with the features that have been
+ * committed since the last run. Adds and modifications are stored, features that
+ * are no longer found in the layer are removed from the index. If the run fails or
+ * is canceled, the features are merged back and retried later.
+ *
+ * @see AtlasIndex#updateDirty()
+ * @author Falko Bräutigam
+ */
+class FeatureIndexer
+        extends UIJob {
+
+    private static final Log log = LogFactory.getLog( FeatureIndexer.class );
+    
+    private AtlasIndex          atlasIndex;
+
+    
+    public FeatureIndexer( AtlasIndex atlasIndex ) {
+        super( FeatureIndexer.class.getSimpleName() );
+        this.atlasIndex = atlasIndex;
+        setRule( atlasIndex.updateRule );
+    }
+
+
+    @Override
+    protected void runWithException( IProgressMonitor monitor ) throws Exception {
+        Map<String,Set<String>> dirty = atlasIndex.drainDirty();
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Timer timer = new Timer();
+        boolean applied = false;
+        try (
+            UnitOfWork uow = ProjectRepository.newUnitOfWork();
+            Updater updater = ((UpdateableFulltextIndex)atlasIndex.index()).prepareUpdate();
+        ){
+            monitor.beginTask( "Updating index", dirty.size() );
+            int count = 0;
+            for (Map.Entry<String,Set<String>> entry : dirty.entrySet()) {
+                if (monitor.isCanceled()) {
+                    return;
+                }
+                ILayer layer = uow.entity( ILayer.class, entry.getKey() );
+                if (layer != null && AtlasFeatureLayer.of( layer ).get().isPresent()) {
+                    if (entry.getValue() == AtlasIndex.ALL_FEATURES) {
+                        LayerIndexer layerIndexer = new LayerIndexer( layer, updater, atlasIndex );
+                        layerIndexer.schedule();
+                        layerIndexer.join();
+                        IStatus result = layerIndexer.getResult();
+                        if (result == null || !result.isOK()) {
+                            throw new IllegalStateException( "Indexing layer failed: " + layer.label.get() 
+                                    + " (" + result + ")", result != null ? result.getException() : null );
+                        }
+                    }
+                    else {
+                        count += updateFeatures( layer, entry.getValue(), updater );
+                    }
+                }
+                monitor.worked( 1 );
+            }
+            if (monitor.isCanceled()) {
+                return;
+            }
+            updater.apply();
+            applied = true;
+            atlasIndex.updated();
+            log.info( "Updated: " + count + " features of " + dirty.size() + " layer(s) (" + timer.elapsedTime() + "ms)" );
+        }
+        finally {
+            if (!applied) {
+                log.warn( "Not updated, retrying: " + dirty.keySet() );
+                atlasIndex.retryDirty( dirty );
+            }
+        }
+        monitor.done();
+    }
+    
+    
+    protected int updateFeatures( ILayer layer, Set<String> fids, Updater updater ) throws Exception {
+        FeatureSource fs = FeatureLayer.of( layer ).get().get().featureSource();
+        Set<FeatureId> ids = new HashSet( fids.size() * 2 );
+        for (String fid : fids) {
+            ids.add( ff.featureId( fid ) );
+        }
+        // added/modified
+        Set<String> found = new HashSet( fids.size() * 2 );
+        try (
+            FeatureIterator it = fs.getFeatures( ff.id( ids ) ).features();
+        ){
+            while (it.hasNext()) {
+                Feature feature = it.next();
+                updater.store( atlasIndex.transform( feature, layer ), true );
+                found.add( feature.getIdentifier().getID() );
+            }
+        }
+        // removed
+        for (String fid : fids) {
+            if (!found.contains( fid )) {
+                updater.remove( fid );
+            }
+        }
+        return fids.size();
+    }
+    
+}
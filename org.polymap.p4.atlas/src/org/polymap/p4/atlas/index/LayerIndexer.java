@@ -14,6 +14,11 @@
  */
 package org.polymap.p4.atlas.index;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.geotools.data.FeatureSource;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
@@ -24,8 +29,10 @@ import org.apache.commons.logging.LogFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
 import org.polymap.core.runtime.UIJob;
 
+import org.polymap.rhei.fulltext.FulltextIndex;
 import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
 
 import org.polymap.p4.layer.FeatureLayer;
@@ -40,6 +47,9 @@ class LayerIndexer
 
     private static final Log log = LogFactory.getLog( LayerIndexer.class );
 
+    /** The number of features that are transformed before they are stored together. */
+    public static final int     BATCH_SIZE = 250;
+
     private ILayer              layer;
     
     private Updater             updater;
@@ -73,18 +83,67 @@ class LayerIndexer
         FeatureSource fs = featureLayer.featureSource();
         FeatureCollection features = fs.getFeatures();
         monitor.beginTask( layer.label.get(), IProgressMonitor.UNKNOWN /*features.size()*/ );
+        Timer timer = new Timer();
+        Timer progress = new Timer();
         try (
             FeatureIterator it = features.features();
         ){
+            Set<String> stale = new HashSet( atlasIndex.layerFids( layer ) );
+            List<JSONObject> batch = new ArrayList( BATCH_SIZE );
             int count = 0;
-            for (;it.hasNext(); count++) {
-                JSONObject json = atlasIndex.transform( it.next() );
-                updater.store( json, true );
-                monitor.worked( 1 );
+            while (it.hasNext() && !monitor.isCanceled()) {
+                JSONObject json = atlasIndex.transform( it.next(), layer );
+                stale.remove( json.getString( FulltextIndex.FIELD_ID ) );
+                batch.add( json );
+                if (batch.size() >= BATCH_SIZE) {
+                    count += store( batch );
+                    monitor.worked( BATCH_SIZE );
+                    if (progress.elapsedTime() > 1000) {
+                        monitor.subTask( count + " features (" + rate( count, timer ) + "/s)" );
+                        progress.start();
+                    }
+                }
+            }
+            count += store( batch );
+            // features removed from the layer since last indexing
+            if (monitor.isCanceled()) {
+                stale.clear();
             }
-            log.info( "indexed: " + count );
+            synchronized (updater) {
+                for (String fid : stale) {
+                    updater.remove( fid );
+                }
+            }
+            log.info( layer.label.get() + ": indexed: " + count + ", removed: " + stale.size() 
+                    + " (" + timer.elapsedTime() + "ms, " + rate( count, timer ) + " features/s)" );
         }
         monitor.done();
     }
     
+    
+    /**
+     * Stores the given batch and clears it. The {@link Updater} is shared by all
+     * {@link LayerIndexer}s of a {@link MapIndexer}; storing the entire batch while
+     * holding the lock avoids that the indexers compete for the writer for every
+     * single feature and blocks transforming features as long as the writer is
+     * busy.
+     * 
+     * @return The number of stored features.
+     */
+    protected int store( List<JSONObject> batch ) throws Exception {
+        int result = batch.size();
+        synchronized (updater) {
+            for (JSONObject json : batch) {
+                updater.store( json, true );
+            }
+        }
+        batch.clear();
+        return result;
+    }
+    
+    
+    protected long rate( int count, Timer timer ) {
+        return count * 1000L / Math.max( 1, timer.elapsedTime() );
+    }
+    
 }
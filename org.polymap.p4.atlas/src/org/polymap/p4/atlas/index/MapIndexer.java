@@ -16,14 +16,18 @@ package org.polymap.p4.atlas.index;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
 import org.polymap.core.project.ILayer;
 import org.polymap.core.project.IMap;
 import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.config.Config;
 import org.polymap.core.runtime.config.ConfigurationFactory;
 import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex;
 import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
@@ -42,13 +46,23 @@ class MapIndexer
 
     private static final Log log = LogFactory.getLog( MapIndexer.class );
     
+    /** 
+     * The max number of {@link LayerIndexer}s running concurrently. Defaults to
+     * the number of available processors if not configured.
+     */
+    public Config<Integer>              maxConcurrentLayers;
+    
     private AtlasIndex                  atlasIndex;
 
     
     public MapIndexer( AtlasIndex atlasIndex ) {
         super( MapIndexer.class.getSimpleName() );
         ConfigurationFactory.inject( this );
+        if (!maxConcurrentLayers.isPresent()) {
+            maxConcurrentLayers.set( Runtime.getRuntime().availableProcessors() );
+        }
         this.atlasIndex = atlasIndex;
+        setRule( atlasIndex.updateRule );
     }
 
     
@@ -74,17 +88,39 @@ class MapIndexer
             IMap map = uow.entity( IMap.class, ProjectRepository.ROOT_MAP_ID );
             log.info( "Starting: " + map.label.get() );
             List<LayerIndexer> layerIndexers = new ArrayList();
+            Semaphore slots = new Semaphore( maxConcurrentLayers.get() );
             for (ILayer layer : map.layers) {
+                if (monitor.isCanceled()) {
+                    break;
+                }
                 if (AtlasFeatureLayer.of( layer ).get().isPresent()) {
+                    // wait for a free slot
+                    slots.acquire();
                     LayerIndexer indexer = new LayerIndexer( layer, updater, atlasIndex );
+                    indexer.addJobChangeListener( new JobChangeAdapter() {
+                        @Override
+                        public void done( IJobChangeEvent ev ) {
+                            slots.release();
+                        }
+                    });
                     indexer.schedule();
                     layerIndexers.add( indexer );
                 }
             }
             // wait for layer jobs
+            if (monitor.isCanceled()) {
+                layerIndexers.forEach( indexer -> indexer.cancel() );
+            }
             UIJob.joinJobs( layerIndexers );
             
+            if (monitor.isCanceled()) {
+                // close() without apply(): the index keeps its previous content
+                log.info( "Canceled: " + map.label.get() );
+                return;
+            }
             updater.apply();
+            atlasIndex.formatUpdated();
+            atlasIndex.updated();
             log.info( "Done: " + map.label.get() );
         }
     }
@@ -16,6 +16,7 @@ package org.polymap.p4.atlas.ui;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.Optional;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,6 +27,9 @@ import org.polymap.core.data.pipeline.PipelineProcessorSite;
 import org.polymap.core.data.pipeline.ProcessorDescription;
 import org.polymap.core.project.ILayer;
 
+import org.polymap.p4.atlas.AtlasFeatureLayer;
+import org.polymap.p4.atlas.LayerQueryBuilder;
+import org.polymap.p4.atlas.index.AtlasIndex;
 import org.polymap.p4.map.ProjectLayerProvider;
 
 /**
@@ -61,5 +65,18 @@ public class AtlasMapLayerProvider
             throw new RuntimeException( e );
         }
     }
+
+
+    /**
+     * Tiles depend on the fulltext query of the session, see
+     * {@link FilterFeatureProcessor}.
+     */
+    @Override
+    protected Optional<String> tileState( ILayer layer ) {
+        LayerQueryBuilder query = AtlasFeatureLayer.query();
+        return Optional.of( query.queryText.isPresent() && query.mapExtent.isPresent()
+                ? query.queryText.get() + ":" + AtlasIndex.instance().generation()
+                : "" );
+    }
     
 }
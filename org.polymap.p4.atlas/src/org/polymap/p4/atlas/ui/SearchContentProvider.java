@@ -18,17 +18,21 @@ import static org.polymap.core.runtime.UIThreadExecutor.logErrorMsg;
 import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
 import org.opengis.feature.Feature;
-import org.apache.commons.lang3.ArrayUtils;
+import org.opengis.filter.sort.SortBy;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -43,6 +47,7 @@ import org.polymap.core.project.IMap;
 import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.UIThreadExecutor;
 import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.ConfigurationFactory;
 import org.polymap.core.runtime.config.Configurable;
 import org.polymap.core.runtime.config.DefaultInt;
 import org.polymap.core.runtime.config.Mandatory;
@@ -57,6 +62,11 @@ import org.polymap.p4.layer.FeatureLayer;
  * Provides {@link ILayer}s of an {@link IMap} and the features thereof. 
  * Listens to {@link PropertyChangeEvent}s fired when {@link AtlasFeatureLayer#query()}
  * has been changed.
+ * <p/>
+ * The features of a layer are counted first, limited by {@link #maxResults}. The
+ * features itself are fetched in pages of {@link #PAGE_SIZE}, in natural order,
+ * when the viewer requests the elements via {@link #updateElement(Object, int)}.
+ * Features of layers that do not support sorting are fetched all at once.
  *
  * @author Falko Bräutigam
  */
@@ -66,7 +76,18 @@ public class SearchContentProvider
 
     private static Log log = LogFactory.getLog( SearchContentProvider.class );
     
-    public static final Object          LOADING = new Object();
+    /**
+     * Placeholder of a not yet fetched element. There is a separate instance for
+     * every index, as the viewer maps every element to one item.
+     */
+    public static class Loading {
+    }
+    
+    public static final Object          LOADING = new Loading();
+    
+    public static boolean isLoading( Object elm ) {
+        return elm instanceof Loading;
+    }
     
     public static final Object[]        CACHE_LOADING = {LOADING};
     
@@ -74,18 +95,37 @@ public class SearchContentProvider
     
     public static final Object[]        CACHE_NO_CHILDREN = {NO_CHILDREN};
     
+    public static final int             PAGE_SIZE = 25;
+    
+    public static final SortBy[]        SORT_BY = {SortBy.NATURAL_ORDER};
+    
+    /** The maximum number of features shown per layer. */
     @Mandatory
-    @DefaultInt( 25 )
+    @DefaultInt( 100 )
     public Config<Integer>              maxResults;
     
     private TreeViewer                  viewer;
     
     private IMap                        input;
 
+    /** The children by parent; features of not yet fetched pages are null. */
     private ConcurrentMap<Object,Object[]> cache = new ConcurrentHashMap( 32 );
     
+    /**
+     * The parent layers of the fetched features, by feature instance; the fids of
+     * features of different layers may be equal.
+     */
+    private Map<Feature,ILayer>         parents = Collections.synchronizedMap( new IdentityHashMap( 128 ) );
+    
+    /** The pages currently fetched: layer id + "/" + page. */
+    private Set<String>                 loadingPages = ConcurrentHashMap.newKeySet();
+    
+    /** The ids of the layers that have more features than {@link #maxResults}. */
+    private Set<String>                 truncated = ConcurrentHashMap.newKeySet();
+    
     
     public SearchContentProvider() {
+        ConfigurationFactory.inject( this );
         EventManager.instance().subscribe( this, ifType( PropertyChangeEvent.class, ev -> 
                 ev.getSource() instanceof LayerQueryBuilder ) );
     }
@@ -113,6 +153,9 @@ public class SearchContentProvider
      */
     public void flush() {
         cache.clear();
+        parents.clear();
+        loadingPages.clear();
+        truncated.clear();
     }
 
     
@@ -121,7 +164,7 @@ public class SearchContentProvider
     @Override
     public void updateChildCount( Object elm, int currentChildCount ) {
         // check cache
-        if (elm == LOADING) {
+        if (isLoading( elm )) {
             return;
         }
         Object[] cached = cache.get( elm );
@@ -172,7 +215,8 @@ public class SearchContentProvider
 
 
    /**
-    *
+    * Counts the features of the given layer. The features are fetched on demand
+    * by {@link #updateFeaturesPage(ILayer, Object[], int)}.
     */
    protected void updateLayer( ILayer elm, int currentChildCount ) {
        updateChildrenLoading( elm );
@@ -182,12 +226,86 @@ public class SearchContentProvider
            
            FeatureLayer fl = FeatureLayer.of( elm ).get().get();
            PipelineFeatureSource fs = fl.featureSource();
-           Object[] children = fs.getFeatures( query ).toArray();
+           int count = fs.getCount( query );
+           if (count < 0) {
+               // count not supported without fetching; one more tells if truncated
+               query.setMaxFeatures( maxResults.get() + 1 );
+               count = fs.getFeatures( query ).size();
+           }
+           if (count > maxResults.get()) {
+               truncated.add( (String)elm.id() );
+           }
+           else {
+               truncated.remove( elm.id() );
+           }
+           Object[] children = new Object[Math.min( count, maxResults.get() )];
            updateChildren( elm, children, currentChildCount );               
        });
    }
 
 
+   /**
+    * Fetches the page of features of the given layer that contains the given index
+    * and replaces the elements in the viewer.
+    *
+    * @param children The cached children of the layer; ignored if the cache was
+    *        flushed meanwhile.
+    */
+   protected void updateFeaturesPage( ILayer elm, Object[] children, int index ) {
+       int page = index / PAGE_SIZE;
+       if (!loadingPages.add( elm.id() + "/" + page )) {
+           return;  // already loading
+       }
+       UIJob.schedule( elm.label.get() + " (" + page + ")", monitor -> {
+           boolean all = false;
+           try {
+               PipelineFeatureSource fs = FeatureLayer.of( elm ).get().get().featureSource();
+               Query query = new Query( AtlasFeatureLayer.query().build( elm ) );
+               int start = 0;
+               if (fs.getQueryCapabilities().supportsSorting( SORT_BY )) {
+                   // pages without a stable order may overlap
+                   start = page * PAGE_SIZE;
+                   query.setSortBy( SORT_BY );
+                   query.setStartIndex( start );
+                   query.setMaxFeatures( Math.min( PAGE_SIZE, children.length - start ) );
+               }
+               else if (all = loadingPages.add( elm.id() + "/all" )) {
+                   query.setMaxFeatures( children.length );
+               }
+               else {
+                   return;  // all pages already loading
+               }
+               int fetched = 0;
+               try (
+                   FeatureIterator it = fs.getFeatures( query ).features();
+               ){
+                   for (int i = start; it.hasNext() && i < children.length; i++, fetched++) {
+                       Feature feature = it.next();
+                       children[i] = feature;
+                       parents.put( feature, elm );
+                   }
+               }
+               int first = start;
+               int end = start + fetched;
+               UIThreadExecutor.async( () -> {
+                   if (cache.get( elm ) == children) {
+                       for (int i = first; i < end; i++) {
+                           viewer.replace( elm, i, children[i] );
+                           viewer.setHasChildren( children[i], false );
+                       }
+                   }
+               }, logErrorMsg( "" ) );
+           }
+           finally {
+               loadingPages.remove( elm.id() + "/" + page );
+               if (all) {
+                   loadingPages.remove( elm.id() + "/all" );
+               }
+           }
+       });
+   }
+
+
     /**
      * Updates the {@link #cache} and the child count for this elm in the viewer/tree.
      */
@@ -197,7 +315,12 @@ public class SearchContentProvider
 //        if (children.length != currentChildCount) {
         UIThreadExecutor.async( () -> { 
             viewer.setChildCount( elm, children.length );
-            viewer.replace( elm, 0, children.length > 0 ? children[0] : null );  // replace the LOADING elm
+            if (children.length > 0 && children[0] == null) {
+                updateElement( elm, 0 );  // replace the LOADING elm, fetch first page
+            }
+            else {
+                viewer.replace( elm, 0, children.length > 0 ? children[0] : null );  // replace the LOADING elm
+            }
         }, logErrorMsg( "" ) );
 //        }
     }
@@ -222,6 +345,12 @@ public class SearchContentProvider
         }
         if (index < children.length) {
             Object child = children[index];
+            if (child == null) {
+                // not yet fetched
+                viewer.replace( parent, index, new Loading() );
+                updateFeaturesPage( (ILayer)parent, children, index );
+                return;
+            }
             viewer.replace( parent, index, child );
             boolean hasChildren = !(child instanceof Feature);
             viewer.setHasChildren( child, hasChildren );
@@ -234,6 +363,15 @@ public class SearchContentProvider
     }
 
     
+    /**
+     * True if the given layer has more features than {@link #maxResults}. Valid
+     * as soon as the {@link #cachedChildCount(Object)} of the layer is present.
+     */
+    public boolean isTruncated( ILayer layer ) {
+        return truncated.contains( layer.id() );
+    }
+
+    
     public Optional<Integer> cachedChildCount( Object elm ) {
         Object[] result = cache.get( elm );
         return result != null && (result.length > 1 || result != CACHE_LOADING) 
@@ -255,12 +393,11 @@ public class SearchContentProvider
             return ((ILayer)elm).parentMap.get();
         }
         else if (elm instanceof Feature) {
-            for (Map.Entry<Object,Object[]> entry : cache.entrySet()) {
-                if (ArrayUtils.contains( entry.getValue(), elm )) {
-                    return entry.getKey();
-                }
+            ILayer result = parents.get( elm );
+            if (result == null) {
+                throw new IllegalArgumentException( "No parent for feature: " + elm );
             }
-            throw new IllegalArgumentException( "No parent for feature: " + elm );
+            return result;
         }
         else {
             throw new IllegalArgumentException( "Unknown element type: " + elm );
@@ -159,7 +159,7 @@ public class SearchPanel
         @Override
         public void update( ViewerCell cell ) {
             Object elm = cell.getElement();
-            if (elm == SearchContentProvider.LOADING) {
+            if (SearchContentProvider.isLoading( elm )) {
                 cell.setText( "Loading..." );
             }
             // IMap
@@ -173,7 +173,7 @@ public class SearchPanel
                 
                 Optional<Integer> childCount = contentProvider.cachedChildCount( layer );
                 if (childCount.isPresent()) {
-                    cell.setText( layerLabel + " (" + childCount.get() + ")" );
+                    cell.setText( layerLabel + " (" + childCount.get() + truncatedMark( layer ) + ")" );
                 }
                 else {
                     cell.setText( layerLabel + " (..)" );
@@ -185,7 +185,7 @@ public class SearchPanel
                             Optional<Integer> polled = contentProvider.cachedChildCount( layer );
                             if (polled.isPresent()) {
                                 UIThreadExecutor.async( () -> { 
-                                    cell.setText( layerLabel + " (" + polled.get() + ")" );
+                                    cell.setText( layerLabel + " (" + polled.get() + truncatedMark( layer ) + ")" );
                                     if (AtlasFeatureLayer.of( layer ).get().get().visible.get()) {
                                         log.info( "expand: " + layer.label.get() );
                                         viewer.expandToLevel( layer, 1 );
@@ -218,6 +218,15 @@ public class SearchPanel
                 throw new IllegalStateException( "Unknown element type: " + elm );
             }
         }
+
+        /**
+         * Signals that the layer has more features than shown, or that the
+         * fulltext search found more features than the index returns.
+         */
+        protected String truncatedMark( ILayer layer ) {
+            return contentProvider.isTruncated( layer ) 
+                    || AtlasFeatureLayer.query().isTruncated( layer ) ? "+" : "";
+        }
     }
 
     
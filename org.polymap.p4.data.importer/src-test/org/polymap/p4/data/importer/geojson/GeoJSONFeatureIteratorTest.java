@@ -13,14 +13,21 @@
 package org.polymap.p4.data.importer.geojson;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import org.geotools.referencing.CRS;
 import org.junit.Test;
 import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
 import org.eclipse.core.runtime.NullProgressMonitor;
@@ -38,4 +45,92 @@ public class GeoJSONFeatureIteratorTest {
         Feature f1 = iterator.next();
         assertEquals("Leipzig", f1.getProperty( "town").getValue());
     }
+
+
+    /**
+     * Writes features with a property n; the feature with the given index has a
+     * Double n and an additional property.
+     */
+    protected File lateFeature( int size, int late ) throws Exception {
+        File file = File.createTempFile( "lateFeature", ".geojson" );
+        file.deleteOnExit();
+        try (
+            Writer out = new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 );
+        ){
+            out.write( "{\"type\": \"FeatureCollection\", \"features\": [" );
+            for (int i=0; i<size; i++) {
+                String properties = i != late ? "{\"n\": " + i + "}" : "{\"n\": 1.5, \"late\": \"x\"}";
+                out.write( (i > 0 ? "," : "") + "{\"type\": \"Feature\", "
+                        + "\"geometry\": {\"type\": \"Point\", \"coordinates\": [12.3, 51.3]}, "
+                        + "\"properties\": " + properties + "}" );
+            }
+            out.write( "]}" );
+        }
+        return file;
+    }
+
+
+    /**
+     * A property and a type that first show up after the sample, but before the
+     * schema is stable.
+     */
+    @Test
+    public void afterSample() throws Exception {
+        File file = lateFeature( GeoJSONFeatureIterator.SAMPLE_SIZE + 1, GeoJSONFeatureIterator.SAMPLE_SIZE );
+
+        // preview: schema from the sample, the last feature does not fit
+        GeoJSONFeatureIterator iterator = new GeoJSONFeatureIterator( file, StandardCharsets.UTF_8, "test", CRS.decode( "EPSG:4326" ), new NullProgressMonitor() );
+        assertNull( iterator.getFeatureType().getDescriptor( "late" ) );
+        try {
+            for (int i=0; i<=GeoJSONFeatureIterator.SAMPLE_SIZE; i++) {
+                iterator.next();
+            }
+            fail( "Property after sample must not be dropped." );
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+
+        // import: read ahead until the schema is stable
+        iterator.readAhead( new NullProgressMonitor() );
+        assertEquals( Double.class, iterator.getFeatureType().getDescriptor( "n" ).getType().getBinding() );
+        assertEquals( String.class, iterator.getFeatureType().getDescriptor( "late" ).getType().getBinding() );
+        SimpleFeature last = null;
+        int count = 0;
+        for (; iterator.hasNext(); count++) {
+            last = iterator.next();
+        }
+        iterator.close();
+        assertEquals( GeoJSONFeatureIterator.SAMPLE_SIZE + 1, count );
+        assertEquals( 1.5, last.getAttribute( "n" ) );
+        assertEquals( "x", last.getAttribute( "late" ) );
+    }
+
+
+    /**
+     * A property that first shows up after the schema is stable fails the
+     * import instead of being dropped.
+     */
+    @Test
+    public void afterReadAhead() throws Exception {
+        int size = 2 * GeoJSONFeatureIterator.SAMPLE_SIZE + 1;
+        File file = lateFeature( size, size - 1 );
+        GeoJSONFeatureIterator iterator = new GeoJSONFeatureIterator( file, StandardCharsets.UTF_8, "test", CRS.decode( "EPSG:4326" ), new NullProgressMonitor() );
+        iterator.readAhead( new NullProgressMonitor() );
+        assertEquals( Long.class, iterator.getFeatureType().getDescriptor( "n" ).getType().getBinding() );
+        assertNull( iterator.getFeatureType().getDescriptor( "late" ) );
+        int count = 0;
+        try {
+            for (; iterator.hasNext(); count++) {
+                iterator.next();
+            }
+            fail( "Property after read-ahead must not be dropped." );
+        }
+        catch (IllegalStateException e) {
+            assertEquals( size - 1, count );
+        }
+        finally {
+            iterator.close();
+        }
+    }
 }
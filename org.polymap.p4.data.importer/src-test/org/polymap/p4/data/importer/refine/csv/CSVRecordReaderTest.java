@@ -0,0 +1,145 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine.csv;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link CSVRecordReader}: quotes, line breaks and the lines to skip.
+ *
+ * @author Falko Bräutigam
+ */
+public class CSVRecordReaderTest {
+
+    private static final Charset    UTF8 = Charset.forName( "UTF-8" );
+
+
+    /**
+     * Reads all records of the given content.
+     */
+    protected List<List<String>> read( String content, String separator, String quote, int skipLines )
+            throws Exception {
+        File f = File.createTempFile( "CSVRecordReaderTest", ".csv" );
+        try {
+            Files.write( f.toPath(), content.getBytes( UTF8 ) );
+            List<List<String>> result = new ArrayList();
+            try (
+                CSVRecordReader in = new CSVRecordReader( f, UTF8, separator, quote, skipLines );
+            ){
+                for (List<String> record = in.readRecord(); record != null; record = in.readRecord()) {
+                    result.add( record );
+                }
+            }
+            return result;
+        }
+        finally {
+            f.delete();
+        }
+    }
+
+
+    protected List<List<String>> read( String content ) throws Exception {
+        return read( content, ",", "\"", 0 );
+    }
+
+
+    @Test
+    public void lineBreaks() throws Exception {
+        List<List<String>> expected = asList( asList( "a", "b" ), asList( "1", "2" ) );
+        assertEquals( expected, read( "a,b\n1,2" ) );
+        assertEquals( expected, read( "a,b\n1,2\n" ) );
+        assertEquals( expected, read( "a,b\r\n1,2\r\n" ) );
+        assertEquals( expected, read( "a,b\r1,2\r" ) );
+        assertEquals( 0, read( "" ).size() );
+    }
+
+
+    @Test
+    public void quotes() throws Exception {
+        assertEquals( asList( asList( "a,b", "c" ) ), read( "\"a,b\",c" ) );
+        assertEquals( asList( asList( "say \"hi\"", "" ) ), read( "\"say \"\"hi\"\"\"," ) );
+        assertEquals( asList( asList( "'a'", "b" ) ), read( "'a',b" ) );
+        assertEquals( asList( asList( "a,b", "c" ) ), read( "'a,b',c", ",", "'", 0 ) );
+        // a quote inside a cell is kept
+        assertEquals( asList( asList( "5\" disk", "x" ) ), read( "5\" disk,x" ) );
+        // quotes not processed
+        assertEquals( asList( asList( "\"a", "b\"" ) ), read( "\"a,b\"", ",", "", 0 ) );
+    }
+
+
+    @Test
+    public void embeddedLineBreaks() throws Exception {
+        List<List<String>> records = read( "name,text\n1,\"first\nsecond\"\n2,\"crlf\r\nline\"\r\n3,x" );
+        assertEquals( 4, records.size() );
+        assertEquals( asList( "1", "first\nsecond" ), records.get( 1 ) );
+        assertEquals( asList( "2", "crlf\r\nline" ), records.get( 2 ) );
+        assertEquals( asList( "3", "x" ), records.get( 3 ) );
+    }
+
+
+    @Test
+    public void separators() throws Exception {
+        assertEquals( asList( asList( "a", "b,c" ) ), read( "a\tb,c", "\\t", "\"", 0 ) );
+        assertEquals( asList( asList( "a", "b" ) ), read( "a;b", ";", "\"", 0 ) );
+        assertEquals( asList( asList( "a", "", "b" ) ), read( "a||b", "|", "\"", 0 ) );
+        for (String separator : new String[] {"", "::", "\\s", null}) {
+            try {
+                read( "a::b", separator, "\"", 0 );
+                fail( "Separator accepted: " + separator );
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+
+    @Test
+    public void blankLines() throws Exception {
+        List<List<String>> records = read( "a,b\n\n1,2\n  \n" );
+        assertEquals( 4, records.size() );
+        assertTrue( CSVRecordReader.isBlank( records.get( 1 ) ) );
+        assertTrue( CSVRecordReader.isBlank( records.get( 3 ) ) );
+        assertFalse( CSVRecordReader.isBlank( records.get( 0 ) ) );
+        assertFalse( CSVRecordReader.isBlank( asList( "", "" ) ) );
+    }
+
+
+    @Test
+    public void skipLines() throws Exception {
+        String content = "title\n\nname,value\r\nskipped,0\n1,2\n";
+        // lines are counted as Refine does: blank lines included
+        assertEquals( asList( asList( "1", "2" ) ), read( content, ",", "\"", 4 ) );
+        assertEquals( asList( asList( "name", "value" ), asList( "skipped", "0" ), asList( "1", "2" ) ),
+                read( content, ",", "\"", 2 ) );
+        // quotes are not processed while skipping
+        assertEquals( asList( asList( "1", "2" ) ), read( "\"a\nb\"\n1,2", ",", "\"", 2 ) );
+        assertEquals( 0, read( content, ",", "\"", 10 ).size() );
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine.csv;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import java.text.DecimalFormat;
+import java.text.ParseException;
+
+/**
+ * Plain timing harness, no JUnit test: compares {@link NumberScanner} with the
+ * former way to type a cell: the regex cascade of {@link TypeGuesser} followed by
+ * {@link DecimalFormat#getInstance(Locale)} per cell. Run as Java application; the
+ * first rounds warm up the JIT.
+ *
+ * @author Falko Bräutigam
+ */
+public class NumberScannerBenchmark {
+
+    private static final String[]   VALUES = {
+            "83", "-83", "83,56", "83.56", "83.456.456", "83 456 456", "83.456,45e-12",
+            "83,456,456.45", "83,456,456.45-", "04683", "16.5.1975", "abe 83", "1234567.891" };
+
+    private static final int        ROUNDS = 10;
+
+    private static final int        LOOPS = 200000;
+
+    private static volatile Object  sink;
+
+
+    public static void main( String[] args ) throws ParseException {
+        NumberScanner scanner = new NumberScanner();
+        for (int round=0; round<ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i=0; i<LOOPS; i++) {
+                for (String value : VALUES) {
+                    GuessedType guessed = scanner.scan( value );
+                    sink = guessed.type() == Type.Decimal ? scanner.value() : guessed;
+                }
+            }
+            long scanned = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i=0; i<LOOPS; i++) {
+                for (String value : VALUES) {
+                    GuessedType guessed = RegexCascade.guess( value );
+                    if (guessed.type() == Type.Decimal) {
+                        Locale locale = guessed.locale() != null ? guessed.locale() : Locale.ENGLISH;
+                        sink = DecimalFormat.getInstance( locale ).parse( value.trim() );
+                    }
+                    else {
+                        sink = guessed;
+                    }
+                }
+            }
+            long former = System.nanoTime() - start;
+
+            int count = LOOPS * VALUES.length;
+            System.out.println( String.format( "Round %d: scanner %d ns/value, regex + DecimalFormat %d ns/value",
+                    round, scanned / count, former / count ) );
+        }
+    }
+
+
+    /**
+     * The former regex cascade of {@link TypeGuesser}.
+     */
+    static class RegexCascade {
+
+        private static Pattern allowedChars               = Pattern.compile( "[\\-eE \\,\\.\\d]+" );
+
+        private static Pattern trailingZero               = Pattern.compile( "0\\d+" );
+
+        private static Pattern integerWithE               = Pattern.compile( "\\-?\\d+([eE]\\-?\\d+)?" );
+
+        private static Pattern negativeArabicIntegerWithE = Pattern.compile( "\\d+([eE]\\-?\\d+)?\\-?" );
+
+        private static Pattern groupingWithComma          = Pattern.compile( "(\\d?\\d?\\d\\,)+\\d\\d\\d([eE]\\-?\\d+)?" );
+
+        private static Pattern groupingWithPoint          = Pattern.compile( "(\\d?\\d?\\d\\.)+\\d\\d\\d([eE]\\-?\\d+)?" );
+
+        private static Pattern groupingWithSpace          = Pattern.compile( "(\\d?\\d?\\d\\ )+\\d\\d\\d([eE]\\-?\\d+)?" );
+
+        private static Pattern decimalWithComma           = Pattern.compile( "\\-?\\d+\\,\\d+([eE]\\-?\\d+)?" );
+
+        private static Pattern decimalWithPoint           = Pattern.compile( "\\-?\\d+\\.\\d+([eE]\\-?\\d+)?" );
+
+        private static Pattern arabicDecimalWithPoint     = Pattern.compile( "\\d+\\.\\d+\\-([eE]\\-?\\d+)?" );
+
+        private static Pattern germanDecimalWithGrouping  = Pattern.compile( "\\-?(\\d?\\d?\\d\\.\\d\\d)+\\d\\,\\d+([eE]\\-?\\d+)?" );
+
+        private static Pattern englishDecimalWithGrouping = Pattern.compile( "\\-?(\\d?\\d?\\d\\,\\d\\d)+\\d\\.\\d+([eE]\\-?\\d+)?" );
+
+        private static Pattern arabicDecimalWithGrouping  = Pattern.compile( "(\\d?\\d?\\d\\,\\d\\d)+\\d\\.\\d+\\-([eE]\\-?\\d+)?" );
+
+        private static Pattern russianDecimalWithGrouping = Pattern.compile( "\\-?(\\d?\\d?\\d\\ \\d\\d)+\\d\\,\\d+([eE]\\-?\\d+)?" );
+
+        public static GuessedType guess( String value ) {
+            if (value == null || value.trim().length() == 0) {
+                return null;
+            }
+            value = value.trim();
+            if (allowedChars.matcher( value ).matches()) {
+                if (trailingZero.matcher( value ).matches()) {
+                    return GuessedType.TEXT;
+                }
+                if (integerWithE.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL;
+                }
+                if (negativeArabicIntegerWithE.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_AR;
+                }
+                if (groupingWithComma.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_EN;
+                }
+                if (groupingWithPoint.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_DE;
+                }
+                if (groupingWithSpace.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_RU;
+                }
+                if (decimalWithComma.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_DE;
+                }
+                if (decimalWithPoint.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_EN;
+                }
+                if (arabicDecimalWithPoint.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_AR;
+                }
+                if (germanDecimalWithGrouping.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_DE;
+                }
+                if (englishDecimalWithGrouping.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_EN;
+                }
+                if (arabicDecimalWithGrouping.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_AR;
+                }
+                if (russianDecimalWithGrouping.matcher( value ).matches()) {
+                    return GuessedType.DECIMAL_RU;
+                }
+            }
+            return GuessedType.TEXT;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParsePosition;
+
+import org.junit.Test;
+
+/**
+ * Checks the values of {@link NumberScanner} against {@link DecimalFormat}, which
+ * parsed the cells before.
+ *
+ * @author Falko Bräutigam
+ */
+public class NumberScannerTest {
+
+    private NumberScanner       scanner = new NumberScanner();
+
+
+    /**
+     * The {@link DecimalFormat} of the given guessed locale. The symbols are set
+     * explicitly, as recognized by {@link TypeGuesser}; the JDK locale data uses a
+     * no-break space for ru and Arabic digits for ar.
+     */
+    protected DecimalFormat format( Locale locale ) {
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols( Locale.ENGLISH );
+        String pattern = "#,##0.0#####";
+        if (locale == null || locale.getLanguage().equals( "en" )) {
+            // default
+        }
+        else if (locale.getLanguage().equals( "de" )) {
+            symbols.setGroupingSeparator( '.' );
+            symbols.setDecimalSeparator( ',' );
+        }
+        else if (locale.getLanguage().equals( "ru" )) {
+            symbols.setGroupingSeparator( ' ' );
+            symbols.setDecimalSeparator( ',' );
+        }
+        else if (locale.getLanguage().equals( "ar" )) {
+            pattern = pattern + ";" + pattern + "-";
+        }
+        else {
+            throw new IllegalArgumentException( "Unknown locale: " + locale );
+        }
+        return new DecimalFormat( pattern, symbols );
+    }
+
+
+    protected Number parse( String s, Locale locale ) {
+        ParsePosition pos = new ParsePosition( 0 );
+        Number result = format( locale ).parse( s, pos );
+        assertEquals( "Not entirely parsed: " + s, s.length(), pos.getIndex() );
+        return result;
+    }
+
+
+    /**
+     * Scans the given value and checks it against the {@link DecimalFormat} of the
+     * guessed locale, including the type of the result: Long or Double.
+     */
+    protected Number assertParity( String s ) {
+        GuessedType guessed = scanner.scan( s );
+        assertEquals( s, Type.Decimal, guessed.type() );
+        Number expected = parse( s, guessed.locale() );
+        assertEquals( s, expected, scanner.value() );
+        return expected;
+    }
+
+
+    @Test
+    public void parity() {
+        Random random = new Random( 4711 );
+        for (Locale locale : new Locale[] {Locale.ENGLISH, Locale.GERMAN, new Locale( "ru" ), new Locale( "ar" )}) {
+            DecimalFormat format = format( locale );
+            for (int i=0; i<100000; i++) {
+                // up to 18 digits, so that the mantissa fits into a long
+                double value = (long)(random.nextDouble() * Math.pow( 10, random.nextInt( 13 ) ))
+                        + (double)random.nextInt( 1000000 ) / 1000000;
+                // negative ru numbers are text; -0 is a Double in NumberFormat
+                boolean negative = locale.getLanguage().equals( "ar" )
+                        || !locale.getLanguage().equals( "ru" ) && random.nextBoolean();
+                value = negative && value != 0 ? -value : value;
+                // the guessed locale may differ: 8.899 is grouping, de
+                assertParity( format.format( value ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void formats() {
+        assertEquals( 83L, assertParity( "83" ) );
+        assertEquals( -83L, assertParity( "-83" ) );
+        assertEquals( 83.56, assertParity( "83,56" ) );
+        assertEquals( 83.56, assertParity( "83.56" ) );
+        assertEquals( 83456456L, assertParity( "83.456.456" ) );
+        assertEquals( 83456456L, assertParity( "83,456,456" ) );
+        assertEquals( 83456456L, assertParity( "83 456 456" ) );
+        assertEquals( 83456456.45, assertParity( "83.456.456,45" ) );
+        assertEquals( 83456456.45, assertParity( "83,456,456.45" ) );
+        assertEquals( 83456456.45, assertParity( "83 456 456,45" ) );
+        assertEquals( -83456456.45, assertParity( "-83.456.456,45" ) );
+        // no fraction: Long, same as NumberFormat
+        assertEquals( 83L, assertParity( "83,00" ) );
+        assertEquals( 83L, assertParity( "83.000000000000000000000000" ) );
+        // more digits than a double has
+        assertEquals( 0.30000000000000004, assertParity( "0.30000000000000004" ) );
+        assertEquals( 123456789012345.67, assertParity( "123,456,789,012,345.67" ) );
+        assertEquals( 1234567890.1234567, assertParity( "1234567890.12345678901234567890" ) );
+    }
+
+
+    @Test
+    public void arabicTrailingMinus() {
+        assertEquals( -83L, assertParity( "83-" ) );
+        assertEquals( -83.45, assertParity( "83.45-" ) );
+        assertEquals( -83456456.45, assertParity( "83,456,456.45-" ) );
+        assertEquals( "ar", scanner.type().locale().getLanguage() );
+        // NumberFormat stops at the 'e', the scanner does not
+        assertEquals( Type.Decimal, scanner.scan( "83e2-" ).type() );
+        assertEquals( -8300L, scanner.value() );
+        // a minus on both ends is text
+        assertEquals( Type.Text, scanner.scan( "-83-" ).type() );
+        assertEquals( Type.Text, scanner.scan( "-83.45-" ).type() );
+    }
+
+
+    @Test
+    public void exponent() {
+        assertEquals( Type.Decimal, scanner.scan( "1e3" ).type() );
+        assertTrue( scanner.isIntegral() );
+        assertEquals( 1000L, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "83.456,45e-1" ).type() );
+        assertEquals( 8345.645, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "1E-3" ).type() );
+        assertEquals( 0.001, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "1e18" ).type() );
+        assertEquals( 1000000000000000000L, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "1e19" ).type() );
+        assertFalse( scanner.isIntegral() );
+        assertEquals( 1e19, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "1e400" ).type() );
+        assertFalse( scanner.isIntegral() );
+        assertEquals( Double.POSITIVE_INFINITY, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "-1e400" ).type() );
+        assertEquals( Double.NEGATIVE_INFINITY, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "1e99999999999" ).type() );
+        assertEquals( Double.POSITIVE_INFINITY, scanner.value() );
+
+        assertEquals( Type.Decimal, scanner.scan( "1.5e-400" ).type() );
+        assertEquals( 0d, scanner.value() );
+    }
+
+
+    @Test
+    public void longOverflow() {
+        assertEquals( Long.MAX_VALUE, assertParity( "9223372036854775807" ) );
+        assertEquals( -Long.MAX_VALUE, assertParity( "-9223372036854775807" ) );
+        assertEquals( Long.MIN_VALUE, assertParity( "-9223372036854775808" ) );
+        assertEquals( 9223372036854775808d, assertParity( "9223372036854775808" ) );
+        assertEquals( -9223372036854775809d, assertParity( "-9223372036854775809" ) );
+        assertEquals( 1e20, assertParity( "100000000000000000000" ) );
+        assertEquals( 9223372036854775807.5, assertParity( "9,223,372,036,854,775,807.5" ) );
+
+        // the value does not fit into a long, even if the digits do
+        assertEquals( Type.Decimal, scanner.scan( "922337203685477580e2" ).type() );
+        assertFalse( scanner.isIntegral() );
+        assertEquals( 9.2233720368547758e19, scanner.value() );
+    }
+
+}
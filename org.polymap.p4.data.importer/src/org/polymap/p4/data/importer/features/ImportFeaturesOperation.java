@@ -16,7 +16,11 @@ package org.polymap.p4.data.importer.features;
 
 import org.geotools.data.DataAccess;
 import org.geotools.data.FeatureStore;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 
 import org.apache.commons.logging.Log;
@@ -39,7 +43,10 @@ import org.polymap.p4.data.importer.ImporterContext;
 
 /**
  * Copies given {@link #features()} into the
- * {@link LocalCatalog#localFeaturesStore()}.
+ * {@link LocalCatalog#localFeaturesStore()}. The features are read in one pass and
+ * written in batches of {@link #BATCH_SIZE}, so lazily read features are never
+ * held in memory all together. The batches are committed one by one, so the newly
+ * created schema is removed again if the import is canceled or fails.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -49,6 +56,8 @@ public class ImportFeaturesOperation
 
     private static final Log log = LogFactory.getLog( ImportFeaturesOperation.class );
     
+    public static final int         BATCH_SIZE = 1000;
+    
     private ImporterContext         context;
 
     private FeatureStore            fs;
@@ -98,8 +107,22 @@ public class ImportFeaturesOperation
         // XXX transaction that spans createSchema() and addFeatures()!?
         ds.createSchema( schema );
         
-        fs = (FeatureStore)ds.getFeatureSource( schema.getName() );
-        fs.addFeatures( features );
+        try {
+            fs = (FeatureStore)ds.getFeatureSource( schema.getName() );
+            if (schema instanceof SimpleFeatureType) {
+                addFeaturesInBatches( (SimpleFeatureType)schema, monitor );
+            }
+            else {
+                fs.addFeatures( features );
+            }
+        }
+        catch (Exception e) {
+            removeSchema( ds, schema );
+            throw e;
+        }
+        if (monitor.isCanceled()) {
+            removeSchema( ds, schema );
+        }
         monitor.done();
 
 //        DefaultTransaction tx = new DefaultTransaction();
@@ -119,5 +142,43 @@ public class ImportFeaturesOperation
         
         return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
     }
+
+
+    protected void addFeaturesInBatches( SimpleFeatureType schema, IProgressMonitor monitor ) throws Exception {
+        ListFeatureCollection batch = new ListFeatureCollection( schema );
+        int count = 0;
+        try (
+            FeatureIterator<SimpleFeature> it = features.features();
+        ){
+            while (it.hasNext() && !monitor.isCanceled()) {
+                batch.add( it.next() );
+                if (batch.size() >= BATCH_SIZE) {
+                    fs.addFeatures( batch );
+                    count += batch.size();
+                    batch.clear();
+                    monitor.subTask( String.valueOf( count ) );
+                }
+            }
+        }
+        if (!batch.isEmpty() && !monitor.isCanceled()) {
+            fs.addFeatures( batch );
+            count += batch.size();
+        }
+        log.info( "Imported: " + count );
+    }
+
+
+    /**
+     * Removes the given, partially imported schema and its features.
+     */
+    protected void removeSchema( DataAccess ds, FeatureType schema ) {
+        try {
+            ds.removeSchema( schema.getName() );
+            log.info( "Removed: " + schema.getName() );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to remove partially imported schema: " + schema.getName(), e );
+        }
+    }
     
 }
@@ -14,36 +14,74 @@
  */
 package org.polymap.p4.data.importer.geojson;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 
+import org.geotools.data.DataUtilities;
 import org.geotools.feature.FeatureIterator;
-import org.geotools.feature.simple.SimpleFeatureImpl;
-import org.geotools.geojson.GeoJSONUtil;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geojson.feature.FeatureJSON;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
 /**
+ * Reads the features of a GeoJSON file in one forward pass. For the preview, the
+ * schema is inferred from the first {@link #SAMPLE_SIZE} features, which are
+ * buffered and emitted first. Before the import, {@link #readAhead(IProgressMonitor)}
+ * reads and buffers features until the schema is stable: no new property or
+ * type for {@link #SAMPLE_SIZE} features in a row. The import then continues in
+ * the same pass. Long widens to Double, other conflicts widen to String.
+ * <p/>
+ * A feature that has the attributes of the schema is emitted as parsed, other
+ * features are converted to the schema. A property or value that first shows up
+ * after the read-ahead and does not fit into the schema fails the import.
+ *
  * @author Steffen Stundzig
  */
 public class GeoJSONFeatureIterator
         implements FeatureIterator<SimpleFeature>, Iterator<SimpleFeature> {
 
+    private static final Log log = LogFactory.getLog( GeoJSONFeatureIterator.class );
+
+    /** The number of features the schema of the preview is inferred from. */
+    public static final int                SAMPLE_SIZE = 1000;
+
+    /** The max number of features buffered by {@link #readAhead(IProgressMonitor)}. */
+    public static final int                MAX_READ_AHEAD = 20 * SAMPLE_SIZE;
+
     private FeatureIterator<SimpleFeature> underlying = null;
 
     private InputStreamReader              isr        = null;
 
-    private final SimpleFeatureType        schema;
+    private SimpleFeatureType              schema;
+
+    private final String                   schemaName;
+
+    private final CoordinateReferenceSystem crs;
 
     private final FeatureJSON              featureJSON;
 
@@ -51,34 +89,163 @@ public class GeoJSONFeatureIterator
 
     private final Charset                  encoding;
 
+    private SimpleFeatureBuilder           fb;
+
+    /** The sampled features that are not yet emitted. */
+    private Deque<SimpleFeature>           sample = new ArrayDeque( SAMPLE_SIZE );
+
+    /** The number of features read by {@link #next()}. */
+    private int                            count;
+
 
     public GeoJSONFeatureIterator( File file, Charset encoding, String schemaName, CoordinateReferenceSystem crs,
             IProgressMonitor monitor ) {
         this.jsonFile = file;
         this.encoding = encoding;
+        this.schemaName = schemaName;
+        this.crs = crs;
         try {
+            // no feature type: every feature is parsed with the properties it has
             featureJSON = new FeatureJSON();
             featureJSON.setEncodeFeatureCRS( false );
             featureJSON.setEncodeNullValues( true );
-            isr = new InputStreamReader( new FileInputStream( file ), encoding );
-            schema = GeoJSONUtil.parse( new LaxFeatureTypeHandler( schemaName, crs ), isr, false );
-            isr.close();
-            featureJSON.setFeatureType( schema );
-
             reset();
+
+            SchemaInference inference = new SchemaInference();
+            while (sample.size() < SAMPLE_SIZE && underlying.hasNext()) {
+                SimpleFeature feature = underlying.next();
+                inference.add( feature );
+                sample.add( feature );
+            }
+            setSchema( inference.schema() );
         }
         catch (Exception e) {
+            close();
             throw new RuntimeException( e );
         }
     }
 
 
+    /**
+     * Starts the import pass: reads the file from start and buffers features
+     * until the schema has not changed for {@link #SAMPLE_SIZE} features in a row,
+     * or {@link #MAX_READ_AHEAD} features are buffered. The schema is inferred from
+     * the buffered features, which are emitted first.
+     */
+    public void readAhead( IProgressMonitor monitor ) throws IOException {
+        reset();
+        SchemaInference inference = new SchemaInference();
+        for (int stable = 0; stable < SAMPLE_SIZE && sample.size() < MAX_READ_AHEAD && underlying.hasNext(); ) {
+            if (monitor.isCanceled()) {
+                throw new OperationCanceledException();
+            }
+            SimpleFeature feature = underlying.next();
+            stable = inference.add( feature ) ? 0 : stable + 1;
+            sample.add( feature );
+        }
+        setSchema( inference.schema() );
+        log.info( "Inferred from " + inference.count + " features: " + schema );
+    }
+
+
+    protected void setSchema( SimpleFeatureType schema ) {
+        this.schema = schema;
+        this.fb = new SimpleFeatureBuilder( schema );
+    }
+
+
+    /**
+     * Collects the properties and their types from the features passed to
+     * {@link #add(SimpleFeature)}.
+     */
+    protected class SchemaInference {
+
+        private String                  geomName;
+
+        private Class<?>                geomType;
+
+        private Map<String,Class<?>>    propertyTypes = new LinkedHashMap();
+
+        private int                     count;
+
+
+        /**
+         * Adds the properties and types of the given feature.
+         *
+         * @return True if the inferred schema has changed.
+         */
+        public boolean add( SimpleFeature feature ) {
+            count ++;
+            boolean changed = false;
+            GeometryDescriptor geom = feature.getFeatureType().getGeometryDescriptor();
+            if (geom != null && feature.getDefaultGeometry() != null) {
+                Class<?> binding = feature.getDefaultGeometry().getClass();
+                Class<?> widened = geomType == null || geomType == binding ? binding : Geometry.class;
+                changed = geomName == null || widened != geomType;
+                geomName = geomName != null ? geomName : geom.getLocalName();
+                geomType = widened;
+            }
+            for (AttributeDescriptor ad : feature.getFeatureType().getAttributeDescriptors()) {
+                if (ad instanceof GeometryDescriptor) {
+                    continue;
+                }
+                Object value = feature.getAttribute( ad.getLocalName() );
+                Class<?> knownType = propertyTypes.get( ad.getLocalName() );
+                Class<?> newType = widen( knownType, value != null ? value.getClass() : null );
+                if (newType != knownType || !propertyTypes.containsKey( ad.getLocalName() )) {
+                    propertyTypes.put( ad.getLocalName(), newType );
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+
+        public SimpleFeatureType schema() {
+            SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+            typeBuilder.setName( new NameImpl( schemaName ) );
+            if (crs != null) {
+                typeBuilder.setCRS( crs );
+            }
+            typeBuilder.add( geomName != null ? geomName : "geometry", geomType != null ? geomType : Geometry.class );
+            for (Map.Entry<String,Class<?>> entry : propertyTypes.entrySet()) {
+                typeBuilder.add( entry.getKey(), entry.getValue() != null ? entry.getValue() : String.class );
+            }
+            return typeBuilder.buildFeatureType();
+        }
+    }
+
+
+    /**
+     * The type that takes values of the given types; null if both are unknown.
+     */
+    protected static Class<?> widen( Class<?> knownType, Class<?> newType ) {
+        if (knownType == null || knownType == newType) {
+            return newType;
+        }
+        else if (newType == null) {
+            return knownType;
+        }
+        else if (Number.class.isAssignableFrom( knownType ) && Number.class.isAssignableFrom( newType )) {
+            return Double.class;
+        }
+        else {
+            return String.class;
+        }
+    }
+
+
+    /**
+     * Re-opens the file; the features are read from start again.
+     */
     public void reset() throws IOException {
         if (isr != null) {
             isr.close();
         }
+        sample.clear();
+        count = 0;
         isr = new InputStreamReader( new FileInputStream( jsonFile ), encoding );
-        underlying = featureJSON.streamFeatureCollection( isr );
+        underlying = featureJSON.streamFeatureCollection( new BufferedReader( isr, 64*1024 ) );
     }
 
 
@@ -105,13 +272,73 @@ public class GeoJSONFeatureIterator
 
     @Override
     public boolean hasNext() {
-        return underlying.hasNext();
+        return !sample.isEmpty() || underlying.hasNext();
     }
 
 
+    /**
+     * The next feature. It is returned as parsed if it has the attributes of the
+     * schema, otherwise the values are converted to the schema.
+     *
+     * @throws IllegalStateException If a property or value does not fit into the
+     *         schema.
+     */
     @Override
     public SimpleFeature next() throws NoSuchElementException {
-        final SimpleFeature next = underlying.next();
-        return new SimpleFeatureImpl( next.getAttributes(), schema, null );
+        SimpleFeature next = !sample.isEmpty() ? sample.poll() : underlying.next();
+        count ++;
+        if (fits( next )) {
+            return next;
+        }
+        for (AttributeDescriptor ad : next.getFeatureType().getAttributeDescriptors()) {
+            String name = ad.getLocalName();
+            AttributeDescriptor target = ad instanceof GeometryDescriptor
+                    ? schema.getGeometryDescriptor() : schema.getDescriptor( name );
+            if (target == null) {
+                throw new IllegalStateException( "Feature " + count + ": property '" + name
+                        + "' is not part of the schema " + DataUtilities.encodeType( schema ) );
+            }
+            Object value = next.getAttribute( name );
+            Class<?> binding = target.getType().getBinding();
+            if (value != null && !binding.isInstance( value )) {
+                if (binding == String.class) {
+                    value = value.toString();
+                }
+                else if (binding == Double.class && value instanceof Number) {
+                    value = ((Number)value).doubleValue();
+                }
+                else {
+                    throw new IllegalStateException( "Feature " + count + ": value of property '" + name
+                            + "' is not a " + binding.getSimpleName() + ": " + value );
+                }
+            }
+            fb.set( target.getLocalName(), value );
+        }
+        return fb.buildFeature( null );
+    }
+
+
+    /**
+     * True if the given feature has the attributes of the schema, in the same
+     * order, and the values match their types. Consumers may copy the values by
+     * index, as {@link SimpleFeatureBuilder#init(SimpleFeature)} does.
+     */
+    protected boolean fits( SimpleFeature feature ) {
+        SimpleFeatureType type = feature.getFeatureType();
+        if (type == schema) {
+            return true;
+        }
+        if (type.getAttributeCount() != schema.getAttributeCount()) {
+            return false;
+        }
+        for (int i=0; i<schema.getAttributeCount(); i++) {
+            AttributeDescriptor target = schema.getDescriptor( i );
+            Object value = feature.getAttribute( i );
+            if (!target.getLocalName().equals( type.getDescriptor( i ).getLocalName() )
+                    || (value != null && !target.getType().getBinding().isInstance( value ))) {
+                return false;
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -193,8 +193,9 @@ public class GeoJSONImporter
 
     @Override
     public void execute( IProgressMonitor monitor ) throws Exception {
-        // must be created in verify before
-        featureIterator.reset();
+        // must be created in verify before; the schema of the preview is
+        // inferred from the first features only; start over in one pass
+        featureIterator.readAhead( monitor );
         
         SimpleFeatureType schema = featureIterator.getFeatureType();
         
@@ -116,6 +116,7 @@ public class ImportRasterOperation
                 }
             });
             update.commit();
+            AllResolver.instance().catalogUpdated();
         }
         return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
     }
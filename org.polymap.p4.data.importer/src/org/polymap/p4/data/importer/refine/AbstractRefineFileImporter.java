@@ -13,9 +13,9 @@
  */
 package org.polymap.p4.data.importer.refine;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 import java.io.File;
 
@@ -57,6 +57,7 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Label;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
 import org.polymap.core.data.refine.RefineService;
 import org.polymap.core.data.refine.impl.FormatAndOptions;
@@ -108,6 +109,12 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
     // all known synonyms for latitude in lower case in all languages
     private static final Set<String>     LATITUDES = Sets.newHashSet( "geo_latitude", "lat", "latitude", "geo_y", "y" );
 
+    /** The max number of rows typed and shown by {@link #verify(IProgressMonitor)}. */
+    public static final int              PREVIEW_SIZE = 500;
+
+    /** The min number of cells to guess the types of the columns in parallel. */
+    public static final int              PARALLEL_THRESHOLD = 10000;
+
     protected ImporterSite               site;
 
     @ContextIn
@@ -135,6 +142,12 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
 
     private boolean                      shouldUpdateOptions = false;
 
+    /**
+     * True until {@link #execute(IProgressMonitor)}: just the first
+     * {@link #PREVIEW_SIZE} rows are typed and converted into features.
+     */
+    private boolean                      preview = true;
+
     private CrsPrompt                    crsPrompt;
 
     private SchemaNamePrompt             schemaNamePrompt;
@@ -163,6 +176,17 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
 
     @Override
     public void execute( IProgressMonitor monitor ) throws Exception {
+        // type all rows from now on
+        preview = false;
+        typedContent = null;
+        
+        // read the file in one pass, if supported
+        SimpleFeatureCollection streamed = streamFeatures( monitor );
+        if (streamed != null) {
+            features = schemaNamePrompt.retypeFeatures( streamed, file.getName() );
+            return;
+        }
+        
         // create all params for contextOut
         // use the typed column from the preview and cancel the import create a
         project = service.createProject( importJob, formatAndOptions, monitor );
@@ -170,7 +194,7 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
         typedContent = null;
         // log.info( "project has rows: " + project.rows.size() );
         // TODO MONITOR for the features
-        features = schemaNamePrompt.retypeFeatures( createFeatures(), file.getName() );
+        features = schemaNamePrompt.retypeFeatures( createFeatures( monitor ), file.getName() );
     }
 
 
@@ -188,33 +212,68 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
     }
     
     
-    private SimpleFeatureCollection createFeatures() {
-        TypedContent content = typedContent();
-        
+    /**
+     * Allows sub-classes to read the features of the entire file in one forward
+     * pass, instead of loading it into a Refine {@link Project} and building all
+     * features in memory. The columns and their types are taken from the
+     * {@link #typedContent()} of the preview, see
+     * {@link #coordinateColumns(TypedContent)} and
+     * {@link #buildFeatureType(boolean, List)}.
+     *
+     * @return The lazily read features, or null if not supported by this importer.
+     */
+    protected SimpleFeatureCollection streamFeatures( IProgressMonitor monitor ) throws Exception {
+        return null;
+    }
+
+
+    /**
+     * The indexes of the latitude and longitude columns of the given content.
+     *
+     * @return The indexes, or null if no numeric coordinate columns are selected.
+     */
+    protected int[] coordinateColumns( TypedContent content ) {
         int latitudeColumnIndex = content.columnIndex( latitudeColumn() );
         int longitudeColumnIndex = content.columnIndex( longitudeColumn() );
         // coordinate columns selected, but final file parsing contains crappy data,
         // so the columns or only String
-        if (latitudeColumnIndex != -1 && longitudeColumnIndex != -1
-                && (!Number.class.isAssignableFrom( content.columns().get( latitudeColumnIndex ).type() )
-                        || !Number.class.isAssignableFrom( content.columns().get( longitudeColumnIndex ).type() ))) {
+        if (latitudeColumnIndex == -1 || longitudeColumnIndex == -1
+                || !Number.class.isAssignableFrom( content.columns().get( latitudeColumnIndex ).type() )
+                || !Number.class.isAssignableFrom( content.columns().get( longitudeColumnIndex ).type() )) {
             // TODO error message to the user
             // log.error( "skipping coordinate creation" );
-            latitudeColumnIndex = -1;
-            longitudeColumnIndex = -1;
+            return null;
         }
-        boolean containsGeom = latitudeColumnIndex != -1 && longitudeColumnIndex != -1;
+        return new int[] {latitudeColumnIndex, longitudeColumnIndex};
+    }
+
+
+    /**
+     * Builds the features of all {@link #typedContent()} rows.
+     *
+     * @throws OperationCanceledException If the monitor was canceled; a partial
+     *         result is never returned.
+     */
+    private SimpleFeatureCollection createFeatures( IProgressMonitor monitor ) {
+        TypedContent content = typedContent();
+        
+        int[] coordinateColumns = coordinateColumns( content );
+        int latitudeColumnIndex = coordinateColumns != null ? coordinateColumns[0] : -1;
+        int longitudeColumnIndex = coordinateColumns != null ? coordinateColumns[1] : -1;
+        boolean containsGeom = coordinateColumns != null;
         
         final SimpleFeatureType TYPE = buildFeatureType( containsGeom, content.columns() );
         final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder( TYPE );
         ListFeatureCollection currentFeatures = new ListFeatureCollection( TYPE );
         // TODO FeatureTable shows always latest created on top, therefore reverse
         // the order
-        List<RefineRow> rows = content.rows();
-        Collections.reverse( rows );
+        List<RefineRow> rows = Lists.reverse( content.rows() );
 
         int count = 0;
         for (RefineRow row : rows) {
+            if (monitor.isCanceled()) {
+                throw new OperationCanceledException( "Canceled after " + count + " rows." );
+            }
             if (containsGeom) {
                 // construct the coordinate
                 try {
@@ -270,7 +329,7 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
         else {
             parent.setLayout( new FormLayout() );
             Label label = toolkit.createLabel( parent,
-                    i18nRefine.get( features.size() == 500 ? "rowsShrinked" : "rows",
+                    i18nRefine.get( features.size() >= PREVIEW_SIZE ? "rowsShrinked" : "rows",
                             features.size() ) );
             FormDataFactory.on( label );
 
@@ -304,10 +363,15 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
         }
         site.terminal.set( true );
         try {
-            features = createFeatures();
+            features = createFeatures( monitor );
             site.ok.set( true );
             exception = null;
         }
+        catch (OperationCanceledException e) {
+            site.ok.set( false );
+            features = null;
+            exception = e;
+        }
         catch (Exception e) {
             site.ok.set( false );
             e.printStackTrace();
@@ -316,7 +380,7 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
     }
 
 
-    private SimpleFeatureType buildFeatureType( boolean containsGeom, List<TypedColumn> columns ) {
+    protected SimpleFeatureType buildFeatureType( boolean containsGeom, List<TypedColumn> columns ) {
         SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
         // no namespace for imported features
         builder.setName( new NameImpl( layerName() ) );
@@ -335,7 +399,8 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
 
     protected synchronized TypedContent typedContent() {
         if (typedContent == null) {
-            typedContent = new TypedContent( columnsWithTypes(), rows() );
+            List<RefineRow> rows = rows();
+            typedContent = new TypedContent( columnsWithTypes( rows ), rows );
         }
         return typedContent;
     }
@@ -343,7 +408,7 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
 
     private List<RefineRow> rows() {
         List<RefineRow> result = Lists.newArrayList();
-        List<Row> rows = originalRows();
+        List<Row> rows = sampleRows();
         for (Row row : rows) {
             RefineRow resultRow = new RefineRow();
             result.add( resultRow );
@@ -363,18 +428,41 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
     }
 
 
-    private List<TypedColumn> columnsWithTypes() {
+    /**
+     * The {@link #originalRows()} to be typed: the first {@link #PREVIEW_SIZE} rows
+     * while in preview, all rows on {@link #execute(IProgressMonitor)}.
+     */
+    protected List<Row> sampleRows() {
+        List<Row> rows = originalRows();
+        return preview && rows.size() > PREVIEW_SIZE ? rows.subList( 0, PREVIEW_SIZE ) : rows;
+    }
+
+
+    /**
+     * The indexes of the given number of columns; a parallel stream if the number
+     * of cells exceeds {@link #PARALLEL_THRESHOLD}. The types of the columns are
+     * guessed independently from each other, one task per column, so the result
+     * does not depend on the order of execution.
+     */
+    protected IntStream columns( int columnCount, int rowCount ) {
+        IntStream result = IntStream.range( 0, columnCount );
+        return (long)columnCount * rowCount > PARALLEL_THRESHOLD ? result.parallel() : result;
+    }
+
+
+    private List<TypedColumn> columnsWithTypes( List<RefineRow> rows ) {
         List<TypedColumn> columnsWithType = Lists.newArrayList();
         for (Column column : originalColumns()) {
             columnsWithType.add( new TypedColumn( column.getName() ) );
         }
         // check all cells for its type and set the column type
-        // String is the default in all cases
-        for (RefineRow row : rows()) {
-            int i = 0;
-            for (RefineCell cell : row.cells()) {
+        // String is the default in all cases; the values are typed already, so
+        // this is cheap and not worth running in parallel
+        for (int i=0; i<columnsWithType.size(); i++) {
+            TypedColumn column = columnsWithType.get( i );
+            for (RefineRow row : rows) {
+                RefineCell cell = i < row.cells().size() ? row.cells().get( i ) : null;
                 if (cell != null && cell.guessedValue() != null) {
-                    TypedColumn column = columnsWithType.get( i );
                     Class currentType = cell.guessedValue().getClass();
                     // if null, set it
                     // if string dont change it
@@ -396,8 +484,10 @@ public abstract class AbstractRefineFileImporter<T extends FormatAndOptions>
                             }
                         }
                     }
+                    if (String.class.isAssignableFrom( column.type() )) {
+                        break;  // String is never overridden
+                    }
                 }
-                i++;
             }
         }
         columnsWithType.stream().filter( c -> c.type() == null ).forEach( c -> c.setType( String.class ) );
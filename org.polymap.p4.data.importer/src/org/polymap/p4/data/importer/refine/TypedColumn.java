@@ -1,6 +1,8 @@
 package org.polymap.p4.data.importer.refine;
 
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 public class TypedColumn {
 
@@ -8,6 +10,9 @@ public class TypedColumn {
 
     private Class  type;
 
+    /** Number of cells by guessed locale, in the order first seen. */
+    private Map<Locale,Integer> locales = new LinkedHashMap();
+
 
     public TypedColumn( String name ) {
         this.name = name;
@@ -29,9 +34,34 @@ public class TypedColumn {
     }
 
 
+    /**
+     * Counts the given locale guessed for a cell of this column. The cells of a
+     * column are guessed in row order by one thread, so {@link #locale()} does not
+     * depend on how the columns are scheduled.
+     */
     public void addLocale( Locale guessedLocale ) {
-        // TODO Auto-generated method stub
-        
+        if (guessedLocale != null) {
+            locales.merge( guessedLocale, 1, Integer::sum );
+        }
+    }
+
+
+    /**
+     * The locale guessed for most of the cells of this column; the first one seen
+     * in case of a tie.
+     *
+     * @return The locale, or null if no locale was guessed.
+     */
+    public Locale locale() {
+        Locale result = null;
+        int max = 0;
+        for (Map.Entry<Locale,Integer> entry : locales.entrySet()) {
+            if (entry.getValue() > max) {
+                result = entry.getKey();
+                max = entry.getValue();
+            }
+        }
+        return result;
     }
 
     @Override
@@ -0,0 +1,199 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine.csv;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import org.polymap.p4.data.importer.refine.TypedColumn;
+
+/**
+ * Reads the features of a CSV file in one forward pass. Just the current record is
+ * kept in memory. The values are converted to the types of the given columns,
+ * which must have been guessed from the entire file beforehand, see
+ * {@link CSVFileImporter}. A value that does not match the type of its column
+ * fails the import.
+ *
+ * @author Falko Bräutigam
+ */
+public class CSVFeatureIterator
+        implements FeatureIterator<SimpleFeature>, Iterator<SimpleFeature>, Closeable {
+
+    private static final Log log = LogFactory.getLog( CSVFeatureIterator.class );
+
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    private SimpleFeatureType       schema;
+
+    private List<TypedColumn>       columns;
+
+    private int                     latitudeColumn;
+
+    private int                     longitudeColumn;
+
+    private NumberScanner           scanner = new NumberScanner();
+
+    private CSVRecordReader         in;
+
+    private SimpleFeatureBuilder    fb;
+
+    private SimpleFeature           next;
+
+    private int                     count;
+
+
+    /**
+     *
+     * @param file The CSV file.
+     * @param encoding
+     * @param separator The separator, as given by the Refine options; \t for tab.
+     * @param quote The quote character, or empty if quotes are not processed.
+     * @param skipLines The number of lines before the first data record.
+     * @param schema The feature type; with a geometry if lat/lon columns are given.
+     * @param columns The columns of the file, in order.
+     * @param latitudeColumn The index of the latitude column, or -1.
+     * @param longitudeColumn The index of the longitude column, or -1.
+     */
+    public CSVFeatureIterator( File file, Charset encoding, String separator, String quote, int skipLines,
+            SimpleFeatureType schema, List<TypedColumn> columns, int latitudeColumn, int longitudeColumn )
+            throws IOException {
+        this.schema = schema;
+        this.columns = columns;
+        this.latitudeColumn = latitudeColumn;
+        this.longitudeColumn = longitudeColumn;
+        this.fb = new SimpleFeatureBuilder( schema );
+        this.in = new CSVRecordReader( file, encoding, separator, quote, skipLines );
+        try {
+            forward();
+        }
+        catch (IOException|RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+
+    @Override
+    public SimpleFeature next() throws NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SimpleFeature result = next;
+        try {
+            forward();
+        }
+        catch (IOException e) {
+            close();
+            throw new RuntimeException( e );
+        }
+        catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        return result;
+    }
+
+
+    @Override
+    public void close() {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                log.warn( "", e );
+            }
+            in = null;
+            log.info( "Read: " + count + " records" );
+        }
+    }
+
+
+    protected void forward() throws IOException {
+        next = null;
+        for (List<String> record = in.readRecord(); record != null; record = in.readRecord()) {
+            if (CSVRecordReader.isBlank( record )) {
+                continue;
+            }
+            count ++;
+            if (schema.getGeometryDescriptor() != null) {
+                Number lat = (Number)value( record, latitudeColumn );
+                Number lon = (Number)value( record, longitudeColumn );
+                fb.add( lat != null && lon != null
+                        ? gf.createPoint( new Coordinate( lon.doubleValue(), lat.doubleValue() ) ) : null );
+            }
+            for (int i=0; i<columns.size(); i++) {
+                fb.add( value( record, i ) );
+            }
+            next = fb.buildFeature( null );
+            return;
+        }
+        close();
+    }
+
+
+    /**
+     * The value of the given column of the given record, converted to the type of
+     * the column.
+     *
+     * @throws IllegalStateException If the value does not match the type of the column.
+     */
+    protected Object value( List<String> record, int index ) {
+        String raw = index < record.size() ? record.get( index ) : "";
+        String s = raw.trim();
+        Class type = columns.get( index ).type();
+        if (s.isEmpty()) {
+            return null;
+        }
+        else if (!Number.class.isAssignableFrom( type )) {
+            return raw;
+        }
+        GuessedType guessed = scanner.scan( raw );
+        if (guessed.type() == Type.Decimal) {
+            if (Double.class.isAssignableFrom( type )) {
+                return scanner.doubleValue();
+            }
+            else if (scanner.isIntegral()) {
+                return scanner.longValue();
+            }
+        }
+        throw new IllegalStateException( "Record " + count + ", column " + columns.get( index ).name()
+                + ": '" + raw + "' is not a " + type.getSimpleName() );
+    }
+
+}
@@ -15,27 +15,33 @@ package org.polymap.p4.data.importer.refine.csv;
 
 import static org.polymap.rhei.batik.app.SvgImageRegistryHelper.NORMAL24;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.text.ParseException;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.collect.Lists;
+import com.vividsolutions.jts.geom.Envelope;
 import com.google.refine.model.Cell;
 import com.google.refine.model.Column;
 import com.google.refine.model.Row;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
 import org.polymap.core.data.refine.impl.CSVFormatAndOptions;
-import org.polymap.core.runtime.Polymap;
 import org.polymap.core.runtime.i18n.IMessages;
 import org.polymap.p4.data.importer.ImporterPlugin;
 import org.polymap.p4.data.importer.ImporterPrompt;
@@ -62,6 +68,9 @@ public class CSVFileImporter
 
     private static final Pattern   ASCIIONLY                 = Pattern.compile( "\\p{ASCII}*" );
 
+    /** The max number of rows used to guess the types of the columns. */
+    public static final int        TYPE_SAMPLE_SIZE          = 10000;
+
     private TypedContent           csvTypedContent;
 
     private List<String>           potentialEncodingProblems = null;
@@ -232,6 +241,135 @@ public class CSVFileImporter
     }
 
 
+    /**
+     * Reads the entire file in one forward pass via {@link CSVFeatureIterator}. The
+     * types of the columns are guessed from the rows of the preview and then
+     * widened by a {@link #scanFile(List, int, int, int, IProgressMonitor) scan} of
+     * the file to match all values. The scan also provides the size and the bounds
+     * of the features.
+     */
+    @Override
+    protected SimpleFeatureCollection streamFeatures( IProgressMonitor monitor ) throws Exception {
+        CSVFormatAndOptions options = formatAndOptions();
+        int skipLines = Math.max( 0, options.ignoreLines() ) + Math.max( 0, options.headerLines() )
+                + Math.max( 0, options.skipDataLines() );
+
+        TypedContent preview = typedContent();
+        ScannedFile scanned = scanFile( preview.columns(), skipLines, 
+                preview.columnIndex( latitudeColumn() ), preview.columnIndex( longitudeColumn() ), monitor );
+        TypedContent content = new TypedContent( scanned.columns, preview.rows() );
+        int[] coordinateColumns = coordinateColumns( content );
+        SimpleFeatureType schema = buildFeatureType( coordinateColumns != null, content.columns() );
+        ReferencedEnvelope bounds = new ReferencedEnvelope( schema.getCoordinateReferenceSystem() );
+        if (coordinateColumns != null) {
+            bounds.expandToInclude( scanned.bounds );
+        }
+
+        return new AbstractFeatureCollection( schema ) {
+            @Override
+            protected Iterator<SimpleFeature> openIterator() {
+                try {
+                    return new CSVFeatureIterator( file, Charset.forName( options.encoding() ),
+                            options.separator(), options.quoteCharacter(), skipLines,
+                            schema, content.columns(),
+                            coordinateColumns != null ? coordinateColumns[0] : -1,
+                            coordinateColumns != null ? coordinateColumns[1] : -1 );
+                }
+                catch (Exception e) {
+                    throw new RuntimeException( e );
+                }
+            }
+            @Override
+            public int size() {
+                return scanned.count;
+            }
+            @Override
+            public ReferencedEnvelope getBounds() {
+                return bounds;
+            }
+        };
+    }
+
+
+    /**
+     * The result of {@link CSVFileImporter#scanFile(List, int, int, int, IProgressMonitor)}.
+     */
+    protected static class ScannedFile {
+
+        /** The columns with the widened types. */
+        public List<TypedColumn>    columns;
+
+        /** The number of records, without blank lines. */
+        public int                  count;
+
+        /** The bounds of the coordinates of all records with both coordinates. */
+        public Envelope             bounds = new Envelope();
+    }
+
+
+    /**
+     * Widens the given types, guessed from the preview, so that they match all
+     * values of the entire file: a Long column with a fraction becomes Double, a
+     * number column with a non-number value becomes String. Counts the records and
+     * the bounds of the given coordinate columns on the way. Reads the file in one
+     * forward pass without building features.
+     *
+     * @param latitudeColumn The index of the latitude column, or -1.
+     * @param longitudeColumn The index of the longitude column, or -1.
+     * @return Newly created columns with the widened types, count and bounds.
+     */
+    protected ScannedFile scanFile( List<TypedColumn> columns, int skipLines, int latitudeColumn, 
+            int longitudeColumn, IProgressMonitor monitor ) throws IOException {
+        ScannedFile scanned = new ScannedFile();
+        List<TypedColumn> result = scanned.columns = Lists.newArrayListWithCapacity( columns.size() );
+        for (TypedColumn column : columns) {
+            TypedColumn widened = new TypedColumn( column.name() );
+            widened.setType( column.type() );
+            result.add( widened );
+        }
+        CSVFormatAndOptions options = formatAndOptions();
+        NumberScanner scanner = new NumberScanner();
+        try (
+            CSVRecordReader in = new CSVRecordReader( file, Charset.forName( options.encoding() ),
+                    options.separator(), options.quoteCharacter(), skipLines );
+        ){
+            for (List<String> record = in.readRecord(); record != null; record = in.readRecord()) {
+                if (monitor.isCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                if (CSVRecordReader.isBlank( record )) {
+                    continue;
+                }
+                scanned.count ++;
+                double lat = Double.NaN, lon = Double.NaN;
+                for (int i=0; i<result.size() && i<record.size(); i++) {
+                    TypedColumn column = result.get( i );
+                    String value = record.get( i );
+                    if (!Number.class.isAssignableFrom( column.type() ) || value.trim().isEmpty()) {
+                        continue;
+                    }
+                    GuessedType guessed = scanner.scan( value );
+                    if (guessed == null || guessed.type() != Type.Decimal) {
+                        log.info( "Setting string in column " + column.name() + " because of '" + value + "'" );
+                        column.setType( String.class );
+                    }
+                    else {
+                        if (!scanner.isIntegral() && !Double.class.isAssignableFrom( column.type() )) {
+                            column.setType( Double.class );
+                        }
+                        lat = i == latitudeColumn ? scanner.doubleValue() : lat;
+                        lon = i == longitudeColumn ? scanner.doubleValue() : lon;
+                    }
+                }
+                if (!Double.isNaN( lat ) && !Double.isNaN( lon )) {
+                    scanned.bounds.expandToInclude( lon, lat );
+                }
+            }
+        }
+        return scanned;
+    }
+
+
     @Override
     public void verify( IProgressMonitor monitor ) {
         csvTypedContent = null;
@@ -257,53 +395,24 @@ public class CSVFileImporter
             }
             // in CSV all cells are strings only, so type guess its value
             // String is the default in all cases
-            List<RefineRow> rows = Lists.newArrayList();
-            for (Row originalRow : originalRows()) {
-                int i = 0;
+            List<Row> all = sampleRows();
+            List<Row> sample = all.size() > TYPE_SAMPLE_SIZE ? all.subList( 0, TYPE_SAMPLE_SIZE ) : all;
+
+            // guess every column in its own task; guessed values by column, by row
+            Object[][] guessedValues = new Object[columnsWithType.size()][];
+            columns( columnsWithType.size(), sample.size() ).forEach( i -> {
+                guessedValues[i] = guessColumn( columnsWithType.get( i ), i, sample );
+            });
+
+            // build rows
+            List<RefineRow> rows = Lists.newArrayListWithCapacity( sample.size() );
+            for (int r=0; r<sample.size(); r++) {
                 RefineRow row = new RefineRow();
                 rows.add( row );
-                for (Cell cell : originalRow.cells) {
-                    TypedColumn column = columnsWithType.get( i );
-                    if (cell == null || cell.value == null || cell.value.toString().trim().equals( "" )
-                            || (column.type() != null && column.type().isAssignableFrom( String.class ))) {
-                        // seems to be empty or a string was found in the same column
-                        // earlier
-                        row.add( new RefineCell( cell ) );
-                    }
-                    else {
-                        // guess the type, fallback in any error case is String
-                        // log.info( "guessing " + cell.value.toString() );
-                        GuessedType guessedType = TypeGuesser.guess( cell.value.toString() );
-                        if (guessedType.type().equals( Type.Decimal )) {
-                            try {
-                                // convert to number
-                                NumberFormat formatter = DecimalFormat.getInstance(
-                                        guessedType.locale() != null ? guessedType.locale()
-                                                : Polymap.getSessionLocale() );
-                                Object guessedValue = formatter.parse( cell.value.toString().trim() );
-                                if (column.type() == null || !column.type().isAssignableFrom( Double.class )) {
-                                    // dont overwrite a double, with a long
-                                    column.setType( guessedValue.getClass() );
-                                }
-                                column.addLocale( guessedType.locale() );
-                                row.add( new RefineCell( cell, guessedValue ) );
-                            }
-                            catch (ParseException e) {
-                                // default to string
-                                column.setType( String.class );
-                                row.add( new RefineCell( cell ) );
-                                throw new RuntimeException( e );
-                            }
-                        }
-                        else {
-                            // defaults to string
-                            log.info( "Setting string in column " + column.name() + " because of '"
-                                    + cell.value.toString() + "'" );
-                            column.setType( String.class );
-                            row.add( new RefineCell( cell ) );
-                        }
-                    }
-                    i++;
+                int i = 0;
+                for (Cell cell : sample.get( r ).cells) {
+                    Object guessedValue = i < guessedValues.length ? guessedValues[i++][r] : null;
+                    row.add( guessedValue != null ? new RefineCell( cell, guessedValue ) : new RefineCell( cell ) );
                 }
             }
             columnsWithType.stream().filter( c -> c.type() == null ).forEach( c -> c.setType( String.class ) );
@@ -313,6 +422,48 @@ public class CSVFileImporter
     }
 
 
+    /**
+     * Guesses the type of the given column from its cells in the given rows.
+     * Stops when a String was found in the column.
+     *
+     * @return The guessed numbers by row; null for cells that are not converted.
+     */
+    protected Object[] guessColumn( TypedColumn column, int index, List<Row> rows ) {
+        Object[] result = new Object[rows.size()];
+        NumberScanner scanner = new NumberScanner();
+        for (int r=0; r<rows.size(); r++) {
+            List<Cell> cells = rows.get( r ).cells;
+            Cell cell = index < cells.size() ? cells.get( index ) : null;
+            if (cell == null || cell.value == null) {
+                continue;  // seems to be empty
+            }
+            // guess the type, fallback in any error case is String
+            GuessedType guessedType = scanner.scan( cell.value.toString() );
+            if (guessedType == null) {
+                continue;  // seems to be empty
+            }
+            else if (guessedType.type().equals( Type.Decimal )) {
+                // the number, as parsed by the scanner
+                Object guessedValue = scanner.value();
+                if (column.type() == null || !column.type().isAssignableFrom( Double.class )) {
+                    // dont overwrite a double, with a long
+                    column.setType( guessedValue.getClass() );
+                }
+                column.addLocale( guessedType.locale() );
+                result[r] = guessedValue;
+            }
+            else {
+                // defaults to string; the remaining cells are not guessed
+                log.info( "Setting string in column " + column.name() + " because of '"
+                        + cell.value.toString() + "'" );
+                column.setType( String.class );
+                break;
+            }
+        }
+        return result;
+    }
+
+
     protected List<String> potentialEncodingProblems() {
         if (potentialEncodingProblems == null) {
             potentialEncodingProblems = Lists.newArrayList();
@@ -0,0 +1,178 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine.csv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the records of a CSV file one by one. Records are terminated by \n, \r\n
+ * or a bare \r. Quoted cells may contain separators and line breaks; doubled
+ * quotes are unescaped. A blank line is returned as a record with one empty cell,
+ * see {@link #isBlank(List)}.
+ *
+ * @author Falko Bräutigam
+ */
+public class CSVRecordReader
+        implements Closeable {
+
+    private char                    separator;
+
+    /** The quote character, or -1 if quotes are not processed. */
+    private int                     quote;
+
+    private BufferedReader          in;
+
+
+    /**
+     * True if the given record is a blank line. Refine counts blank lines for
+     * the lines to skip but does not import them.
+     */
+    public static boolean isBlank( List<String> record ) {
+        return record.size() == 1 && record.get( 0 ).trim().isEmpty();
+    }
+
+
+    /**
+     *
+     * @param file The CSV file.
+     * @param encoding
+     * @param separator The separator, as given by the Refine options; \t for tab.
+     * @param quote The quote character, or empty if quotes are not processed.
+     * @param skipLines The number of lines to skip, including blank lines; quotes
+     *        are not processed, as Refine counts the lines.
+     * @throws IllegalArgumentException If the separator or the quote is not a
+     *         single character.
+     */
+    public CSVRecordReader( File file, Charset encoding, String separator, String quote, int skipLines )
+            throws IOException {
+        if ("\\t".equals( separator )) {
+            this.separator = '\t';
+        }
+        else if (separator != null && separator.length() == 1) {
+            this.separator = separator.charAt( 0 );
+        }
+        else {
+            throw new IllegalArgumentException( "Separator must be a single character: '" + separator + "'" );
+        }
+        if (quote == null || quote.isEmpty()) {
+            this.quote = -1;
+        }
+        else if (quote.length() == 1) {
+            this.quote = quote.charAt( 0 );
+        }
+        else {
+            throw new IllegalArgumentException( "Quote must be a single character: '" + quote + "'" );
+        }
+        this.in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), encoding ), 64*1024 );
+
+        for (int i=0; i<skipLines && skipLine(); i++) {
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+
+    /**
+     * Skips the next line, without processing quotes.
+     *
+     * @return False at end of file.
+     */
+    protected boolean skipLine() throws IOException {
+        int c = in.read();
+        if (c == -1) {
+            return false;
+        }
+        for (; c != -1 && c != '\n'; c = in.read()) {
+            if (c == '\r') {
+                in.mark( 1 );
+                if (in.read() != '\n') {
+                    in.reset();
+                }
+                break;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Reads the cells of the next record.
+     *
+     * @return The cells, or null at end of file.
+     */
+    public List<String> readRecord() throws IOException {
+        List<String> result = new ArrayList( 16 );
+        StringBuilder cell = new StringBuilder( 64 );
+        boolean quoted = false;
+        int c = in.read();
+        if (c == -1) {
+            return null;
+        }
+        for (; c != -1; c = in.read()) {
+            if (quoted) {
+                if (c == quote) {
+                    in.mark( 1 );
+                    if (in.read() == quote) {
+                        cell.append( (char)c );
+                    }
+                    else {
+                        in.reset();
+                        quoted = false;
+                    }
+                }
+                else {
+                    cell.append( (char)c );
+                }
+            }
+            else if (c == quote && cell.length() == 0) {
+                quoted = true;
+            }
+            else if (c == separator) {
+                result.add( cell.toString() );
+                cell.setLength( 0 );
+            }
+            else if (c == '\n') {
+                break;
+            }
+            else if (c == '\r') {
+                // \r\n or a bare \r
+                in.mark( 1 );
+                if (in.read() != '\n') {
+                    in.reset();
+                }
+                break;
+            }
+            else {
+                cell.append( (char)c );
+            }
+        }
+        result.add( cell.toString() );
+        return result;
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data.importer.refine.csv;
+
+import java.math.BigDecimal;
+
+/**
+ * Classifies the number format of a cell value and parses its value in one pass
+ * over the characters, without creating a {@link java.util.regex.Matcher} or
+ * {@link java.text.NumberFormat}. Recognizes plain integers with exponent,
+ * English, German and Russian grouping and decimal separators, and the trailing
+ * minus of Arabic numbers. See {@link TypeGuesser} for the formats.
+ * <p/>
+ * An instance keeps the state of the last {@link #scan(CharSequence)}, it is
+ * not thread-safe. Re-use one instance per thread.
+ *
+ * @author Falko Bräutigam
+ */
+public class NumberScanner {
+
+    /** The max number of digit runs between grouping/decimal separators. */
+    private static final int    MAX_RUNS = 32;
+
+    /** The powers of ten that are exact doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    /** The powers of ten that fit into a long. */
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+
+    /** Mantissas below are exact doubles. */
+    private static final long   MAX_EXACT_MANTISSA = 1L << 53;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i=1; i<POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+        }
+        LONG_POWERS_OF_TEN[0] = 1;
+        for (int i=1; i<LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i-1] * 10;
+        }
+    }
+
+    // scan state *****************************************
+
+    private CharSequence    value;
+
+    /** The range of the digit runs and separators. */
+    private int             bodyStart, bodyEnd;
+
+    private int[]           runs = new int[MAX_RUNS];
+
+    /** The separator <b>before</b> the run with the same index. */
+    private char[]          seps = new char[MAX_RUNS];
+
+    private int             runCount;
+
+    private boolean         leadingMinus;
+
+    /** Minus after the digits, before the exponent (if any). */
+    private boolean         bodyMinus;
+
+    /** Minus after the exponent. */
+    private boolean         trailingMinus;
+
+    private boolean         hasExponent;
+
+    private int             exponent;
+
+    /** All digits of the body, without separators; valid if !mantissaOverflow. */
+    private long            mantissa;
+
+    private boolean         mantissaOverflow;
+
+    // result *********************************************
+
+    private GuessedType     type;
+
+    private long            longValue;
+
+    private double          doubleValue;
+
+    private boolean         integral;
+
+
+    /**
+     * Scans the given value.
+     *
+     * @return The guessed type, or null if the value is null or blank.
+     */
+    public GuessedType scan( CharSequence value ) {
+        type = null;
+        if (value == null) {
+            return null;
+        }
+        // trim
+        int start = 0, end = value.length();
+        while (start < end && value.charAt( start ) <= ' ') {
+            start ++;
+        }
+        while (end > start && value.charAt( end-1 ) <= ' ') {
+            end --;
+        }
+        if (start == end) {
+            return null;
+        }
+        this.value = value;
+        type = tokenize( value, start, end ) ? classify( value.charAt( start ) ) : GuessedType.TEXT;
+        this.value = null;
+        return type;
+    }
+
+
+    /** The type of the last {@link #scan(CharSequence)}. */
+    public GuessedType type() {
+        return type;
+    }
+
+
+    /**
+     * True if the last scanned value is a {@link Type#Decimal} without fraction that
+     * fits into a long. {@link #longValue()} is valid then.
+     */
+    public boolean isIntegral() {
+        return integral;
+    }
+
+
+    public long longValue() {
+        return longValue;
+    }
+
+
+    public double doubleValue() {
+        return doubleValue;
+    }
+
+
+    /**
+     * The value of the last scanned {@link Type#Decimal}: a {@link Long} if
+     * {@link #isIntegral()}, a {@link Double} otherwise. Same as
+     * {@link java.text.NumberFormat#parse(String)}, this boxes the value.
+     */
+    public Number value() {
+        assert type != null && type.type() == Type.Decimal;
+        return integral ? (Number)Long.valueOf( longValue ) : (Number)Double.valueOf( doubleValue );
+    }
+
+
+    /**
+     * Splits the given range into: leading minus, digit runs separated by single
+     * '.', ',' or ' ', minus, exponent and minus.
+     *
+     * @return False if the value does not have this structure.
+     */
+    protected boolean tokenize( CharSequence s, int start, int end ) {
+        runCount = 0;
+        leadingMinus = bodyMinus = trailingMinus = hasExponent = mantissaOverflow = false;
+        exponent = 0;
+        mantissa = 0;
+
+        int i = start;
+        if (s.charAt( i ) == '-') {
+            leadingMinus = true;
+            i ++;
+        }
+        bodyStart = i;
+        // digit runs
+        char sep = 0;
+        while (true) {
+            int runStart = i;
+            for (; i < end && isDigit( s.charAt( i ) ); i++) {
+                int digit = s.charAt( i ) - '0';
+                if (!mantissaOverflow && mantissa > (Long.MAX_VALUE - digit) / 10) {
+                    mantissaOverflow = true;
+                }
+                mantissa = mantissa * 10 + digit;
+            }
+            if (i == runStart || runCount == MAX_RUNS) {
+                return false;
+            }
+            seps[runCount] = sep;
+            runs[runCount++] = i - runStart;
+
+            if (i + 1 < end && isSeparator( s.charAt( i ) ) && isDigit( s.charAt( i+1 ) )) {
+                sep = s.charAt( i++ );
+            }
+            else {
+                break;
+            }
+        }
+        bodyEnd = i;
+        if (i < end && s.charAt( i ) == '-') {
+            bodyMinus = true;
+            i ++;
+        }
+        // exponent
+        if (i < end && (s.charAt( i ) == 'e' || s.charAt( i ) == 'E')) {
+            hasExponent = true;
+            i ++;
+            boolean negative = i < end && s.charAt( i ) == '-';
+            if (negative) {
+                i ++;
+            }
+            int expStart = i;
+            for (; i < end && isDigit( s.charAt( i ) ); i++) {
+                exponent = Math.min( exponent * 10 + (s.charAt( i ) - '0'), 100000 );
+            }
+            if (i == expStart) {
+                return false;
+            }
+            exponent = negative ? -exponent : exponent;
+
+            if (i < end && s.charAt( i ) == '-') {
+                trailingMinus = true;
+                i ++;
+            }
+        }
+        return i == end;
+    }
+
+
+    /**
+     * Classifies the tokenized value, same order and result as the patterns of
+     * {@link TypeGuesser}.
+     */
+    protected GuessedType classify( char first ) {
+        // a minus at the very end (after exponent, or after the digits if no exponent)
+        boolean endMinus = hasExponent ? trailingMinus && !bodyMinus : bodyMinus;
+        // a minus between digits and exponent (or at the end if no exponent)
+        boolean midMinus = bodyMinus && !trailingMinus;
+        boolean noMinus = !bodyMinus && !trailingMinus;
+        char lastSep = seps[runCount-1];
+
+        if (runCount == 1) {
+            // postcode 03453 should be text
+            if (first == '0' && runs[0] > 1 && !leadingMinus && noMinus && !hasExponent) {
+                return GuessedType.TEXT;
+            }
+            // integer with exponents
+            if (noMinus) {
+                return result( GuessedType.DECIMAL, 0, false );
+            }
+            if (!leadingMinus && endMinus) {
+                return result( GuessedType.DECIMAL_AR, 0, true );
+            }
+            return GuessedType.TEXT;
+        }
+        // grouping only
+        if (!leadingMinus && noMinus && isGrouping( runCount )) {
+            switch (lastSep) {
+                case ',': return result( GuessedType.DECIMAL_EN, 0, false );
+                case '.': return result( GuessedType.DECIMAL_DE, 0, false );
+                case ' ': return result( GuessedType.DECIMAL_RU, 0, false );
+            }
+        }
+        // decimal
+        if (runCount == 2) {
+            if (noMinus && lastSep == ',') {
+                return result( GuessedType.DECIMAL_DE, runs[1], false );
+            }
+            if (noMinus && lastSep == '.') {
+                return result( GuessedType.DECIMAL_EN, runs[1], false );
+            }
+            if (!leadingMinus && midMinus && lastSep == '.') {
+                return result( GuessedType.DECIMAL_AR, runs[1], true );
+            }
+        }
+        // grouping and decimal
+        if (runCount >= 3 && isGroupingWithDecimal()) {
+            char groupSep = seps[1];
+            int fraction = runs[runCount-1];
+            if (noMinus && groupSep == '.' && lastSep == ',') {
+                return result( GuessedType.DECIMAL_DE, fraction, false );
+            }
+            if (noMinus && groupSep == ',' && lastSep == '.') {
+                return result( GuessedType.DECIMAL_EN, fraction, false );
+            }
+            if (!leadingMinus && midMinus && groupSep == ',' && lastSep == '.') {
+                return result( GuessedType.DECIMAL_AR, fraction, true );
+            }
+            if (noMinus && groupSep == ' ' && lastSep == ',') {
+                return result( GuessedType.DECIMAL_RU, fraction, false );
+            }
+        }
+        return GuessedType.TEXT;
+    }
+
+
+    /**
+     * <code>(\d?\d?\d,)+\d\d\d</code>: all runs separated by the same separator;
+     * leading runs of 1-3 digits, last run 3 digits.
+     */
+    protected boolean isGrouping( int count ) {
+        for (int i=0; i<count-1; i++) {
+            if (runs[i] > 3 || (i > 0 && seps[i] != seps[1])) {
+                return false;
+            }
+        }
+        return runs[count-1] == 3 && seps[count-1] == seps[1];
+    }
+
+
+    /**
+     * <code>(\d?\d?\d\.\d\d)+\d,\d+</code>: the runs before the decimal separator
+     * separated by the same grouping separator; first run 1-3 digits, inner runs
+     * 3-5 digits, last run before decimal separator 3 digits.
+     */
+    protected boolean isGroupingWithDecimal() {
+        int last = runCount - 1;
+        if (runs[0] > 3 || runs[last-1] != 3 || seps[last] == seps[1]) {
+            return false;
+        }
+        for (int i=1; i<last; i++) {
+            if (seps[i] != seps[1] || (i < last-1 && (runs[i] < 3 || runs[i] > 5))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Computes the value of the scanned number. Same as {@link java.text.NumberFormat},
+     * the value is integral if it has no fraction (other than zeros) and fits into a
+     * long; a double value is rounded correctly.
+     *
+     * @param fractionDigits The number of trailing digits after the decimal separator.
+     */
+    protected GuessedType result( GuessedType result, int fractionDigits, boolean arabicMinus ) {
+        boolean negative = leadingMinus || arabicMinus;
+        int scale = exponent - fractionDigits;
+        integral = false;
+
+        if (!mantissaOverflow) {
+            if (mantissa == 0) {
+                return integral( result, 0 );
+            }
+            if (scale >= 0 && scale < LONG_POWERS_OF_TEN.length
+                    && mantissa <= Long.MAX_VALUE / LONG_POWERS_OF_TEN[scale]) {
+                long value = mantissa * LONG_POWERS_OF_TEN[scale];
+                return integral( result, negative ? -value : value );
+            }
+            if (scale < 0 && -scale < LONG_POWERS_OF_TEN.length && mantissa % LONG_POWERS_OF_TEN[-scale] == 0) {
+                long value = mantissa / LONG_POWERS_OF_TEN[-scale];
+                return integral( result, negative ? -value : value );
+            }
+            // one operation of exact doubles is rounded correctly
+            if (mantissa < MAX_EXACT_MANTISSA && Math.abs( scale ) < POWERS_OF_TEN.length) {
+                doubleValue = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+            }
+            else {
+                doubleValue = Double.parseDouble( digits().append( 'E' ).append( scale ).toString() );
+            }
+            doubleValue = negative ? -doubleValue : doubleValue;
+        }
+        else {
+            // more than 18 digits
+            BigDecimal exact = new BigDecimal( digits().toString() ).scaleByPowerOfTen( scale );
+            exact = negative ? exact.negate() : exact;
+            try {
+                return integral( result, exact.longValueExact() );
+            }
+            catch (ArithmeticException e) {
+                doubleValue = exact.doubleValue();
+            }
+        }
+        return result;
+    }
+
+
+    protected GuessedType integral( GuessedType result, long value ) {
+        longValue = value;
+        doubleValue = value;
+        integral = true;
+        return result;
+    }
+
+
+    /**
+     * The digits of the body, without separators. Creates a String, so this is used
+     * only if the value cannot be computed from a long or from exact doubles.
+     */
+    protected StringBuilder digits() {
+        StringBuilder result = new StringBuilder( bodyEnd - bodyStart + 8 );
+        for (int i=bodyStart; i<bodyEnd; i++) {
+            char c = value.charAt( i );
+            if (isDigit( c )) {
+                result.append( c );
+            }
+        }
+        return result;
+    }
+
+
+    protected static boolean isDigit( char c ) {
+        return c >= '0' && c <= '9';
+    }
+
+
+    protected static boolean isSeparator( char c ) {
+        return c == '.' || c == ',' || c == ' ';
+    }
+
+}
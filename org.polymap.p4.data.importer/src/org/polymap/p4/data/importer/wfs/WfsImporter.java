@@ -64,6 +64,7 @@ import org.polymap.rhei.batik.toolkit.SimpleDialog;
 import org.polymap.rhei.table.FeatureCollectionContentProvider;
 
 import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.AllResolver;
 import org.polymap.p4.data.importer.Importer;
 import org.polymap.p4.data.importer.ImporterPlugin;
 import org.polymap.p4.data.importer.ImporterPrompt;
@@ -297,6 +298,7 @@ public class WfsImporter
                 metadata.setConnectionParams( WfsServiceResolver.createParams( url ) );
             } );
             update.commit();
+            AllResolver.instance().catalogUpdated();
         }
 
         //
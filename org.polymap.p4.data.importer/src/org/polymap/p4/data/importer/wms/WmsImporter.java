@@ -60,6 +60,7 @@ import org.polymap.rhei.batik.toolkit.IPanelToolkit;
 import org.polymap.rhei.batik.toolkit.SimpleDialog;
 
 import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.AllResolver;
 import org.polymap.p4.data.importer.Importer;
 import org.polymap.p4.data.importer.ImporterPlugin;
 import org.polymap.p4.data.importer.ImporterPrompt;
@@ -268,6 +269,7 @@ public class WmsImporter
                 metadata.setConnectionParams( WmsServiceResolver.createParams( url ) );
             });
             update.commit();
+            AllResolver.instance().catalogUpdated();
         }
 
         //
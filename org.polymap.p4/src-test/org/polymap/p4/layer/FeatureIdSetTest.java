@@ -0,0 +1,145 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.polymap.p4.layer.FeatureLayer.ff;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.polymap.p4.layer.FeatureIdSet.Ordinals;
+import org.polymap.p4.layer.FeatureLayer.Mode;
+
+/**
+ * Tests the set operations of {@link FeatureIdSet}. {@link Id} filters are mapped
+ * without accessing the features, so no feature source is needed.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureIdSetTest {
+
+    private Ordinals        ordinals;
+
+
+    @Before
+    public void setup() {
+        ordinals = new Ordinals();
+    }
+
+
+    protected FeatureIdSet set( String... fids ) throws Exception {
+        return setOf( ordinals, fids );
+    }
+
+
+    protected FeatureIdSet setOf( Ordinals target, String... fids ) throws Exception {
+        Set<FeatureId> ids = new HashSet();
+        for (String fid : fids) {
+            ids.add( ff.featureId( fid ) );
+        }
+        return FeatureIdSet.of( null, ids.isEmpty() ? Filter.EXCLUDE : ff.id( ids ), target );
+    }
+
+
+    protected void assertFids( FeatureIdSet set, String... expected ) {
+        assertEquals( expected.length, set.size() );
+        for (String fid : expected) {
+            assertTrue( fid, set.contains( fid ) );
+        }
+    }
+
+
+    @Test
+    public void modes() throws Exception {
+        FeatureIdSet a = set( "1", "2", "3" );
+        FeatureIdSet b = set( "3", "4" );
+
+        assertSame( b, a.combine( b, Mode.REPLACE ) );
+        assertFids( a.combine( b, Mode.ADD ), "1", "2", "3", "4" );
+        assertFids( a.combine( b, Mode.DIFFERENCE ), "1", "2" );
+        assertFids( a.combine( b, Mode.INTERSECT ), "3" );
+
+        // instances are immutable
+        assertFids( a, "1", "2", "3" );
+        assertFids( b, "3", "4" );
+    }
+
+
+    @Test
+    public void empty() throws Exception {
+        FeatureIdSet a = set( "1", "2" );
+        FeatureIdSet none = set();
+        assertTrue( none.isEmpty() );
+        assertTrue( a.combine( none, Mode.INTERSECT ).isEmpty() );
+        assertTrue( a.combine( a, Mode.DIFFERENCE ).isEmpty() );
+        assertFids( a.combine( none, Mode.ADD ), "1", "2" );
+    }
+
+
+    @Test
+    public void contains() throws Exception {
+        FeatureIdSet a = set( "1", "2" );
+        set( "3" );
+        assertTrue( a.contains( "1" ) );
+        assertFalse( a.contains( "3" ) );
+
+        // unknown fids are not assigned an ordinal
+        int size = ordinals.size();
+        assertFalse( a.contains( "unknown" ) );
+        assertEquals( size, ordinals.size() );
+        assertEquals( -1, ordinals.indexOf( "unknown" ) );
+    }
+
+
+    @Test
+    public void toFilter() throws Exception {
+        assertEquals( Filter.EXCLUDE, set().toFilter() );
+
+        Filter filter = set( "1", "2", "3" ).combine( set( "2" ), Mode.DIFFERENCE ).toFilter();
+        assertTrue( filter instanceof Id );
+        Set<String> fids = new HashSet();
+        for (Object fid : ((Id)filter).getIDs()) {
+            fids.add( fid.toString() );
+        }
+        assertEquals( 2, fids.size() );
+        assertTrue( fids.contains( "1" ) );
+        assertTrue( fids.contains( "3" ) );
+    }
+
+
+    @Test
+    public void renewedOrdinals() throws Exception {
+        FeatureIdSet a = set( "1", "2", "3" );
+        Ordinals renewed = new Ordinals();
+        FeatureIdSet b = setOf( renewed, "3", "4" );
+
+        assertSame( a, a.remap( ordinals ) );
+        assertFids( a.remap( renewed ), "1", "2", "3" );
+        assertFids( a.combine( b, Mode.ADD ), "1", "2", "3", "4" );
+        assertFids( a.combine( b, Mode.INTERSECT ), "3" );
+        assertFids( a.combine( b, Mode.DIFFERENCE ), "1", "2" );
+    }
+
+}
@@ -18,7 +18,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.geotools.data.FeatureSource;
 
@@ -42,9 +48,15 @@ import org.polymap.core.data.pipeline.DataSourceDescription;
 import org.polymap.core.project.ILayer;
 import org.polymap.core.runtime.JobExecutor;
 import org.polymap.core.runtime.SubMonitor;
+import org.polymap.core.runtime.Timer;
 import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.cache.Cache;
 import org.polymap.core.runtime.cache.CacheConfig;
+import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
 
 import org.polymap.p4.P4Plugin;
 import org.polymap.p4.layer.FeatureLayer;
@@ -63,6 +75,7 @@ import org.polymap.p4.layer.FeatureLayer;
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
 public class AllResolver
+        extends Configurable
         implements IMetadataResourceResolver {
 
     private static Log log = LogFactory.getLog( AllResolver.class );
@@ -84,15 +97,42 @@ public class AllResolver
     /** The delegates. */
     private List<IMetadataResourceResolver> resolvers; 
 
+    /** Failed resolutions are retried after this time after the failure. */
+    @Mandatory
+    @DefaultInt( 30 )
+    public Config<Integer>                  negativeTtlSeconds;
+    
+    /** Pending resolutions are considered hung and are retried after this time. */
+    @Mandatory
+    @DefaultInt( 120 )
+    public Config<Integer>                  resolveTimeoutSeconds;
+    
+    /** The max time to wait for the catalogs to look up an entry. */
+    @Mandatory
+    @DefaultInt( 10 )
+    public Config<Integer>                  catalogTimeoutSeconds;
+    
     /**
      * Caches {@link IResolvableInfo} instances in order to have just one underlying
      * service instances (WMS, Shape, RDataStore, etc.) per JVM.
      * <p/>
      * Using {@link ConcurrentHashMap} instead of {@link Cache} ensures that mapping
      * function is executed at most once per key and there is actually just one
-     * resolvable constructed per metadata.
+     * resolvable constructed per metadata. Successful resolutions are never
+     * expired, they keep the one service instance per JVM; they are removed by
+     * {@link #evict(String)} only. Failed and hung resolutions are expired by
+     * {@link #isExpired(Resolved, long)} and replaced on next access.
      */
-    private Map<IMetadata,CompletableFuture<IResolvableInfo>> resolved = new ConcurrentHashMap();
+    private ConcurrentMap<IMetadata,Resolved> resolved = new ConcurrentHashMap();
+    
+    private AtomicLong                      hits = new AtomicLong();
+    
+    private AtomicLong                      misses = new AtomicLong();
+    
+    private AtomicLong                      failures = new AtomicLong();
+    
+    /** Sum of the time of all successful resolutions. */
+    private AtomicLong                      resolveMillis = new AtomicLong();
     
     /**
      * Caches {@link IMetadata}.
@@ -102,6 +142,7 @@ public class AllResolver
     
     public AllResolver( List<IMetadataCatalog> catalogs ) {
         assert !catalogs.isEmpty();
+        ConfigurationFactory.inject( this );
         this.catalogs = catalogs;
         this.resolvers = ResourceResolverExtension.createAllResolvers(); 
     }
@@ -158,15 +199,44 @@ public class AllResolver
             String metadataId = parseResourceIdentifier( layer.resourceIdentifier.get() )[0];
             
             return Optional.ofNullable( metadataCache.get( metadataId, key -> {
-                monitor.beginTask( "Metadata", catalogs.size() );
+                monitor.beginTask( "Metadata", IProgressMonitor.UNKNOWN );
+                // ask all catalogs in parallel; first found wins; the shared
+                // monitor tells the others to stop
+                IProgressMonitor lookupMonitor = new NullProgressMonitor();
+                CompletableFuture<IMetadata> first = new CompletableFuture();
+                AtomicInteger pending = new AtomicInteger( catalogs.size() );
                 for (IMetadataCatalog catalog : catalogs) {
-                    Optional<? extends IMetadata> result = catalog.entry( metadataId, monitor );
-                    if (result.isPresent()) {
-                        return result.get();
-                    }
-                    monitor.worked( 1 );
+                    CompletableFuture.supplyAsync( () -> {
+                        try {
+                            return catalog.entry( metadataId, lookupMonitor );
+                        }
+                        catch (Exception e) {
+                            throw new CompletionException( e );
+                        }
+                    }, JobExecutor.withProgress() )
+                    .whenComplete( (result, e) -> {
+                        if (e != null) {
+                            log.warn( "Catalog: " + catalog.getTitle() + ": " + e.getMessage() );
+                        }
+                        else if (result != null && result.isPresent()) {
+                            first.complete( result.get() );
+                            lookupMonitor.setCanceled( true );
+                        }
+                        if (pending.decrementAndGet() == 0) {
+                            first.complete( null );
+                        }
+                    });
+                }
+                try {
+                    return first.get( catalogTimeoutSeconds.get(), TimeUnit.SECONDS );
+                }
+                catch (TimeoutException e) {
+                    log.warn( "Timeout while looking up metadata: " + metadataId );
+                    return null;
+                }
+                finally {
+                    lookupMonitor.setCanceled( true );
                 }
-                return null;
             }));
         }
         finally {
@@ -225,17 +295,112 @@ public class AllResolver
      */
     @Override
     public CompletableFuture<IResolvableInfo> resolve( IMetadata metadata ) {
-        return resolved.computeIfAbsent( metadata, key -> {
-            return doResolve( metadata, new NullProgressMonitor() );
-        });
+        return cached( metadata, new NullProgressMonitor() );
     }
 
     
     @Override
     public IResolvableInfo resolve( IMetadata metadata, IProgressMonitor monitor ) throws Exception {
-        return resolved.computeIfAbsent( metadata, key -> {
-            return doResolve( metadata, monitor );
-        }).get();
+        return cached( metadata, monitor ).get();
+    }
+    
+    
+    /**
+     * Returns the cached resolution or starts a new one if there is no entry or
+     * the entry is expired. Concurrent callers share one resolution.
+     */
+    protected CompletableFuture<IResolvableInfo> cached( IMetadata metadata, IProgressMonitor monitor ) {
+        long now = System.currentTimeMillis();
+        boolean[] miss = {false};
+        Resolved result = resolved.compute( metadata, (key, current) -> {
+            if (current != null && !isExpired( current, now )) {
+                return current;
+            }
+            miss[0] = true;
+            return new Resolved( doResolve( metadata, monitor ), now );
+        });
+        (miss[0] ? misses : hits).incrementAndGet();
+        
+        if (miss[0]) {
+            // do not keep failures of metadata that are not asked again
+            resolved.values().removeIf( entry -> entry != result && isExpired( entry, now ) );
+        }
+        return result.future;
+    }
+
+
+    /**
+     * Failed resolutions expire {@link #negativeTtlSeconds} after the failure,
+     * pending resolutions after {@link #resolveTimeoutSeconds}. Successful
+     * resolutions never expire.
+     */
+    protected boolean isExpired( Resolved entry, long now ) {
+        if (!entry.future.isDone()) {
+            return now - entry.created > TimeUnit.SECONDS.toMillis( resolveTimeoutSeconds.get() );
+        }
+        else if (entry.future.isCompletedExceptionally()) {
+            // failed == 0: just completed, callback not yet run
+            return entry.failed > 0 && now - entry.failed > TimeUnit.SECONDS.toMillis( negativeTtlSeconds.get() );
+        }
+        else {
+            return false;
+        }
+    }
+    
+
+    /**
+     * Evicts the cached resolutions and metadata of the given catalog entry.
+     *
+     * @param metadataId The identifier of the catalog entry.
+     */
+    public void evict( String metadataId ) {
+        log.info( "Evicting: " + metadataId );
+        metadataCache.remove( metadataId );
+        resolved.keySet().removeIf( metadata -> metadataId.equals( metadata.getIdentifier() ) );
+    }
+    
+    
+    /**
+     * Evicts all failed or not yet completed resolutions and all cached metadata.
+     * Called after the catalog was updated. Successful resolutions stay cached in
+     * order to keep the one service instance per JVM.
+     */
+    public void catalogUpdated() {
+        metadataCache.clear();
+        resolved.values().removeIf( entry -> !entry.future.isDone() || entry.future.isCompletedExceptionally() );
+    }
+    
+    
+    @Override
+    public String toString() {
+        long successful = misses.get() - failures.get();
+        return getClass().getSimpleName() + "[size=" + resolved.size() 
+                + ", hits=" + hits.get() + ", misses=" + misses.get() + ", failures=" + failures.get()
+                + ", avgResolveMillis=" + (successful > 0 ? resolveMillis.get() / successful : 0) + "]";
+    }
+
+
+    /**
+     * Cache entry. 
+     */
+    protected static class Resolved {
+        
+        public CompletableFuture<IResolvableInfo>   future;
+        
+        public long                                 created;
+        
+        /** The time the resolution failed, or 0. */
+        public volatile long                        failed;
+
+        public Resolved( CompletableFuture<IResolvableInfo> future, long created ) {
+            this.future = future;
+            this.created = created;
+            future.whenComplete( (result, e) -> {
+                if (e != null) {
+                    failed = System.currentTimeMillis();
+                }
+            });
+        }
     }
     
     
@@ -244,12 +409,16 @@ public class AllResolver
         for (IMetadataResourceResolver resolver : resolvers) {
             if (resolver.canResolve( metadata ) ) {
                 return CompletableFuture.supplyAsync( () -> {
+                    Timer timer = new Timer();
                     try {
                         IProgressMonitor mon = /*monitor != null ? monitor :*/ UIJob.monitorOfThread();
-                        return resolver.resolve( metadata, mon );
+                        IResolvableInfo result = resolver.resolve( metadata, mon );
+                        resolveMillis.addAndGet( timer.elapsedTime() );
+                        return result;
                     }
                     catch (Exception e) {
                         log.warn( "", e );
+                        failures.incrementAndGet();
                         throw Throwables.propagate( e );
                     }
                 }, JobExecutor.withProgress() );
@@ -262,7 +431,8 @@ public class AllResolver
 
     @Override
     public boolean canResolve( IMetadata metadata ) {
-        return resolved.get( metadata ) == null
+        Resolved entry = resolved.get( metadata );
+        return entry == null || entry.future.isCompletedExceptionally()
                 ? resolvers.stream().filter( r -> r.canResolve( metadata ) ).findFirst().isPresent()
                 : true;
     }
@@ -49,6 +49,7 @@ public class CatalogEntryDeleteOperation extends AbstractOperation implements IU
         try {
             if(identifier.isPresent()) {
                 P4Plugin.localCatalog().deleteEntry( identifier.get() );
+                AllResolver.instance().evict( identifier.get() );
                 return Status.OK_STATUS;
             } else {
                 return new Status(IStatus.ERROR, P4Plugin.ID, "No entry to delete given.");
@@ -16,7 +16,10 @@ package org.polymap.p4.catalog;
 
 import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,6 +36,7 @@ import org.eclipse.jface.viewers.StructuredSelection;
 import org.eclipse.jface.viewers.ViewerCell;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
 
 import org.polymap.core.catalog.IMetadata;
 import org.polymap.core.catalog.IMetadataCatalog;
@@ -41,7 +45,8 @@ import org.polymap.core.catalog.ui.MetadataContentProvider;
 import org.polymap.core.catalog.ui.MetadataDescriptionProvider;
 import org.polymap.core.catalog.ui.MetadataLabelProvider;
 import org.polymap.core.project.IMap;
-import org.polymap.core.runtime.SubMonitor;
+import org.polymap.core.runtime.JobExecutor;
+import org.polymap.core.runtime.Timer;
 import org.polymap.core.ui.FormDataFactory;
 import org.polymap.core.ui.FormLayoutFactory;
 import org.polymap.core.ui.SelectionAdapter;
@@ -80,6 +85,9 @@ public class CatalogPanel
 
     public static final PanelIdentifier ID = PanelIdentifier.parse( "catalog" );
 
+    /** The max time to wait for the catalogs to answer proposals, in milliseconds. */
+    public static final int             PROPOSALS_TIMEOUT = 2000;
+
     private MdListViewer                viewer;
 
     /** Outbound: */
@@ -145,18 +153,38 @@ public class CatalogPanel
         new TextProposalDecorator( search.getText() ) {
             @Override
             protected String[] proposals( String text, int maxResults, IProgressMonitor monitor ) {
-                monitor.beginTask( "Proposals", catalogs.size()*10 );
-                Set<String> result = new TreeSet();
-                for (IMetadataCatalog catalog : catalogs) {
+                monitor.beginTask( "Proposals", IProgressMonitor.UNKNOWN );
+                // ask all catalogs in parallel and merge results as they arrive;
+                // the shared monitor tells them to stop on timeout or cancel
+                IProgressMonitor catalogMonitor = new NullProgressMonitor();
+                Set<String> result = new ConcurrentSkipListSet();
+                CompletableFuture<Void> all = CompletableFuture.allOf( catalogs.stream()
+                        .map( catalog -> CompletableFuture.runAsync( () -> {
+                            try {
+                                Iterables.addAll( result, catalog.propose( text, 10, catalogMonitor ) );
+                            }
+                            catch (Exception e) {
+                                log.warn( "", e );
+                            }
+                        }, JobExecutor.withProgress() ) )
+                        .toArray( CompletableFuture[]::new ) );
+                
+                // wait for all, a timeout or cancel; whatever comes first
+                Timer timer = new Timer();
+                while (!all.isDone() && !monitor.isCanceled() && timer.elapsedTime() < PROPOSALS_TIMEOUT) {
                     try {
-                        SubMonitor submon = SubMonitor.on( monitor, 10 );
-                        Iterables.addAll( result, catalog.propose( text, 10, submon ) );
-                        submon.done();
+                        all.get( 100, TimeUnit.MILLISECONDS );
+                    }
+                    catch (TimeoutException e) {
                     }
                     catch (Exception e) {
-                        log.warn( "", e );
+                        break;
                     }
                 }
+                if (!all.isDone()) {
+                    log.info( "Proposals: not all catalogs answered within " + timer.elapsedTime() + "ms" );
+                    catalogMonitor.setCanceled( true );
+                }
                 return FluentIterable.from( result ).limit( maxResults ).toArray( String.class );
             }
         };
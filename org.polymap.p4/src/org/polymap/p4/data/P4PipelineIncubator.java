@@ -15,13 +15,20 @@
 package org.polymap.p4.data;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.polymap.core.data.feature.DataSourceProcessor;
 import org.polymap.core.data.feature.FeatureRenderProcessor2;
 import org.polymap.core.data.image.ImageDecodeProcessor;
 import org.polymap.core.data.image.ImageEncodeProcessor;
+import org.polymap.core.data.pipeline.DataSourceDescription;
 import org.polymap.core.data.pipeline.DefaultPipelineIncubator;
+import org.polymap.core.data.pipeline.Pipeline;
+import org.polymap.core.data.pipeline.PipelineIncubationException;
 import org.polymap.core.data.pipeline.PipelineIncubator;
 import org.polymap.core.data.pipeline.PipelineProcessor;
 import org.polymap.core.data.pipeline.PipelineProcessorSite;
@@ -54,6 +61,38 @@ public class P4PipelineIncubator
         return new P4PipelineIncubator();
     }
     
+    /** The time a failed chain search is remembered. */
+    public static final long        FAILURE_TTL = 60 * 1000;
+    
+    /**
+     * Results of unsuccessful chain searches keyed by usecase, service type,
+     * processor configs and properties of the incubator, see
+     * {@link #failureKey(Class, DataSourceDescription, List)}. Every subsequent
+     * search with the same key would fail again. Entries expire after
+     * {@link #FAILURE_TTL}, so that temporary failures do not block pipelines
+     * forever.
+     */
+    private static final ConcurrentMap<String,Failure> unsupported = new ConcurrentHashMap();
+    
+    /**
+     * An unsuccessful chain search.
+     */
+    protected static class Failure {
+        
+        public long                         created = System.currentTimeMillis();
+        
+        /** The exception thrown, or null if no pipeline was returned. */
+        public PipelineIncubationException  cause;
+        
+        public Failure( PipelineIncubationException cause ) {
+            this.cause = cause;
+        }
+        
+        public boolean isExpired() {
+            return System.currentTimeMillis() - created > FAILURE_TTL;
+        }
+    }
+    
     
     // instance *******************************************
     
@@ -73,6 +112,58 @@ public class P4PipelineIncubator
     }
     
     
+    @Override
+    public Pipeline newPipeline( Class<? extends PipelineProcessor> usecase, DataSourceDescription dsd,
+            List<ProcessorDescription> procConfigs ) throws PipelineIncubationException {
+        String key = failureKey( usecase, dsd, procConfigs );
+        Failure known = unsupported.get( key );
+        if (known != null && known.isExpired()) {
+            unsupported.remove( key, known );
+        }
+        else if (known != null && known.cause != null) {
+            // new exception: the stack trace of the cached one belongs to another thread
+            throw new PipelineIncubationException( known.cause.getMessage(), known.cause );
+        }
+        else if (known != null) {
+            return null;
+        }
+        try {
+            Pipeline result = super.newPipeline( usecase, dsd, procConfigs );
+            if (result == null || result.length() == 0) {
+                unsupported.put( key, new Failure( null ) );
+            }
+            return result;
+        }
+        catch (PipelineIncubationException e) {
+            unsupported.put( key, new Failure( e ) );
+            throw e;
+        }
+    }
+    
+    
+    /**
+     * The key of a chain search in {@link #unsupported}. Contains everything the
+     * result depends on: usecase, type of the service, the processor configs and
+     * the properties of this incubator.
+     */
+    protected String failureKey( Class<? extends PipelineProcessor> usecase, DataSourceDescription dsd,
+            List<ProcessorDescription> procConfigs ) {
+        StringBuilder result = new StringBuilder( 256 )
+                .append( usecase.getName() ).append( '|' )
+                .append( dsd.service.get().getClass().getName() );
+        if (procConfigs != null) {
+            for (ProcessorDescription procConfig : procConfigs) {
+                result.append( '|' ).append( procConfig.getProcessorType().getName() )
+                        .append( procConfig.getProps() );
+            }
+        }
+        for (Map.Entry<String,Object> entry : new TreeMap<String,Object>( properties ).entrySet()) {
+            result.append( '|' ).append( entry.getKey() ).append( '=' ).append( entry.getValue() );
+        }
+        return result.toString();
+    }
+    
+    
     @Override
     protected PipelineProcessorSite createProcessorSite( ProcessorDescription procDesc ) {
         Map<String,Object> props = new HashMap( properties );
@@ -17,17 +17,12 @@ package org.polymap.p4.fs;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.time.DateFormatUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.apache.commons.logging.Log;
@@ -122,44 +117,12 @@ public class CsvContentProvider
             extends DefaultContentNode
             implements IContentFile, IEntityStateListener {
 
-        /** GZipped bytes. */
-        private byte[]              content;
-        
-        /** Size of the unzipped content. */
-        private long                contentLength;
-        
-        private IOException         lastException;
-        
-        private Date                modified;
+        private Locale              locale;
         
         
         public CsvFile( IPath parentPath, IContentProvider provider, ILayer layer ) {
             super( layer.getLabel() + ".csv", parentPath, provider, layer );
-
-            // init content
-            lastException = null;
-            try {
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                CountingOutputStream cout = new CountingOutputStream( new GZIPOutputStream( bout ) );
-
-                PipelineFeatureSource fs = PipelineFeatureSource.forLayer( getLayer(), false );
-                
-                CsvExporter exporter = new CsvExporter();
-                exporter.setLocale( getSite().getLocale() );
-                exporter.write( fs.getFeatures(), cout, new NullProgressMonitor() );
-                
-                content = bout.toByteArray();
-                contentLength = cout.getByteCount();
-                modified = new Date();
-            }
-            catch (IOException e) {
-                log.warn( "", e);
-                lastException = e;
-            }
-            catch (Exception e) {
-                log.warn( "", e);
-                lastException = new IOException( e );
-            }
+            this.locale = getSite().getLocale();
 
             // add model listener
             EntityStateTracker.instance().addListener( this );
@@ -187,23 +150,41 @@ public class CsvContentProvider
         }
 
 
-        public int getSizeInMemory() {
-            return (content != null ? content.length : 0) + super.getSizeInMemory();
+        /**
+         * The content shared by all sessions with the same locale. The export is
+         * done on first access, not when the folder is listed.
+         */
+        protected SpooledLayerContent content() {
+            return SpooledLayerContent.of( getLayer(), "csv." + locale );
         }
 
 
+        /**
+         * Exports the features in the locale of this session.
+         */
+        protected SpooledLayerContent.Encoder encoder() {
+            return new SpooledLayerContent.Encoder() {
+                public void encode( ILayer layer, OutputStream out ) throws Exception {
+                    PipelineFeatureSource fs = PipelineFeatureSource.forLayer( layer, false );
+                    CsvExporter exporter = new CsvExporter();
+                    exporter.setLocale( locale );
+                    exporter.write( fs.getFeatures(), out, new NullProgressMonitor() );
+                }
+            };
+        }
+        
+
         public ILayer getLayer() {
             return (ILayer)getSource();
         }
 
 
+        /**
+         * The length of the content if already spooled, null (unknown) otherwise.
+         * A PROPFIND of the folder must not trigger the export.
+         */
         public Long getContentLength() {
-            if (lastException != null) {
-                throw new RuntimeException( lastException );
-            }
-            else {
-                return contentLength;
-            }
+            return content().spooledLength();
         }
 
 
@@ -218,24 +199,13 @@ public class CsvContentProvider
 
 
         public Date getModifiedDate() {
-            if (lastException != null) {
-                throw new RuntimeException( lastException );
-            }
-            else {
-                return modified;
-            }
+            return content().getModifiedDate();
         }
 
 
         public void sendContent( final OutputStream out, Range range, Map<String, String> params, String contentType )
         throws IOException, BadRequestException {
-            if (lastException != null) {
-                log.warn( "", lastException );
-                throw lastException;
-            }
-            else {
-                IOUtils.copy( new GZIPInputStream( new ByteArrayInputStream( content ) ), out );
-            }
+            content().sendContent( getLayer(), encoder(), out, range );
         }
         
     }
@@ -19,7 +19,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import org.geotools.geojson.feature.FeatureJSON;
@@ -99,40 +98,34 @@ public class GeoJsonContentProvider
             extends DefaultContentNode
             implements IContentFile {
 
-        private byte[]              content;
-        
-        private Exception           lastException;
-        
-        private Date                modified;
-        
-        
-        public GeoJsonFile( IPath parentPath, IContentProvider provider, ILayer layer ) {
-            super( layer.getLabel() + ".json", parentPath, provider, layer );
-            try {
-                lastException = null;
-                PipelineFeatureSource fs = PipelineFeatureSource.forLayer( getLayer(), false );
+        /**
+         * Encodes the features straight from the {@link PipelineFeatureSource} to
+         * the spool file.
+         */
+        public static final SpooledLayerContent.Encoder ENCODER = new SpooledLayerContent.Encoder() {
+            public void encode( ILayer layer, OutputStream out ) throws Exception {
+                PipelineFeatureSource fs = PipelineFeatureSource.forLayer( layer, false );
 
                 FeatureJSON encoder = new FeatureJSON();
                 encoder.setEncodeFeatureBounds( false );
                 encoder.setEncodeFeatureCollectionBounds( false );
                 encoder.setEncodeFeatureCollectionCRS( false );
                 encoder.setEncodeFeatureCRS( false );
-
-                ByteArrayOutputStream out = new ByteArrayOutputStream( 128*1024 );
                 encoder.writeFeatureCollection( fs.getFeatures(), out );
-                
-                content = out.toByteArray();
-                modified = new Date();
-            }
-            catch (Exception e) {
-                log.warn( "", e );
-                lastException = e;
             }
+        };
+        
+        
+        public GeoJsonFile( IPath parentPath, IContentProvider provider, ILayer layer ) {
+            super( layer.getLabel() + ".json", parentPath, provider, layer );
         }
 
 
-        public int getSizeInMemory() {
-            return (content != null ? content.length : 0) + super.getSizeInMemory();
+        /**
+         * The content shared by all sessions; encoded on first access.
+         */
+        protected SpooledLayerContent content() {
+            return SpooledLayerContent.of( getLayer(), "json" );
         }
 
 
@@ -141,14 +134,12 @@ public class GeoJsonContentProvider
         }
 
 
+        /**
+         * The length of the content if already spooled, null (unknown) otherwise.
+         * A PROPFIND of the folder must not trigger the export.
+         */
         public Long getContentLength() {
-            if (lastException != null) {
-                log.warn( "", lastException );
-                return null;
-            }
-            else {
-                return (long)content.length;
-            }
+            return content().spooledLength();
         }
 
 
@@ -163,20 +154,14 @@ public class GeoJsonContentProvider
 
 
         public Date getModifiedDate() {
-            return modified;
+            return content().getModifiedDate();
         }
 
 
         public void sendContent( final OutputStream out, Range range, Map<String, String> params, String contentType )
         throws IOException, BadRequestException {
             log.debug( "range: " + range + ", params: " + params + ", contentType: " + contentType );
-            
-            if (lastException != null) {
-                log.warn( "", lastException );
-            }
-            else {
-                out.write( content );
-            }
+            content().sendContent( getLayer(), ENCODER, out, range );
         }
 
     }
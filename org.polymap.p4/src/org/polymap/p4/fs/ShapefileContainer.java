@@ -15,16 +15,20 @@
 package org.polymap.p4.fs;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -32,6 +36,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.ParseException;
 
@@ -53,15 +60,15 @@ import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.FilterFactory;
-import org.opengis.filter.Id;
 import org.opengis.filter.identity.Identifier;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Path;
@@ -78,11 +85,20 @@ import org.polymap.core.runtime.entity.EntityHandle;
 import org.polymap.core.runtime.entity.EntityStateTracker.Updater;
 import org.polymap.core.runtime.entity.EntityStateEvent.EventType;
 
-import org.polymap.service.fs.spi.IContentSite;
-
 /**
  * The container of the files of a shapefile used by the content file implementations
  * of the {@link ShapefileContentProvider}.
+ * <p/>
+ * There is one container per layer, shared by all sessions, see
+ * {@link #of(ILayer)}. The shapefile is generated once per revision of the layer,
+ * that is, on first access after the layer was committed. Concurrent callers wait
+ * for the first one to finish the generation. The container does not keep the
+ * layer entity or feature source of a session; callers pass their own layer with
+ * every call. Containers not accessed for {@link #IDLE_TIMEOUT} are disposed and
+ * their files are deleted.
+ * <p/>
+ * Content nodes should not keep a reference to a container but call
+ * {@link #of(ILayer)} for every access.
  * 
  * @author <a href="http://www.polymap.de">Falko Br�utigam</a>
  */
@@ -95,6 +111,44 @@ class ShapefileContainer
     
     public static final long        UPDATE_JOB_DELAY = 5000;
     
+    public static final String      ZIP_SUFFIX = "shp.zip";
+    
+    /** Containers not accessed for this time are disposed. */
+    public static final long        IDLE_TIMEOUT = 30 * 60 * 1000;
+    
+    /** Guarded by itself. */
+    private static final Map<String,ShapefileContainer> instances = new HashMap();
+    
+    
+    /**
+     * Returns the container of the given layer, shared by all sessions. Disposes
+     * idle containers.
+     */
+    public static ShapefileContainer of( ILayer layer ) {
+        synchronized (instances) {
+            for (Iterator<ShapefileContainer> it=instances.values().iterator(); it.hasNext(); ) {
+                ShapefileContainer instance = it.next();
+                if (instance.isIdle()) {
+                    it.remove();
+                    // inside the lock: a new container of the same layer uses the same files
+                    instance.dispose();
+                }
+            }
+            ShapefileContainer result = instances.get( layer.id() );
+            if (result == null) {
+                result = new ShapefileContainer( (String)layer.id() );
+                instances.put( (String)layer.id(), result );
+            }
+            result.lastAccess = System.currentTimeMillis();
+            return result;
+        }
+    }
+    
+    
+    // instance *******************************************
+    
+    private String                  layerId;
+    
     File                            file;
     
     /** The exception from last shapefile creation, or null if ok. */
@@ -103,38 +157,55 @@ class ShapefileContainer
     /** The exception from last update, or null if none. */
     Exception                       updateException;
     
-    ILayer                          layer;
-    
     Date                            lastModified = new Date();
 
-    IContentSite                    site;
-    
+    /** Guarded by the write lock. */
     private UpdateJob               updateJob;
     
     private ReentrantReadWriteLock  lock = new ReentrantReadWriteLock();
     
-    private PipelineFeatureSource   layerFs;
+    private volatile long           lastAccess = System.currentTimeMillis();
+    
+    private volatile boolean        disposed;
     
     
-    public ShapefileContainer( ILayer layer, IContentSite site ) {
-        this.layer = layer;
-        this.site = site;
+    protected ShapefileContainer( String layerId ) {
+        this.layerId = layerId;
+        FeatureStateTracker.instance().addFeatureListener( this );
+    }
+
+
+    protected boolean isIdle() {
+        return updateJob == null 
+                && System.currentTimeMillis() - lastAccess > IDLE_TIMEOUT;
+    }
+
+
+    /**
+     * Removes the listener and deletes the files. Waits for running readers.
+     */
+    protected void dispose() {
+        log.info( "disposing: " + layerId );
+        FeatureStateTracker.instance().removeFeatureListener( this );
+        lock.writeLock().lock();
         try {
-            this.layerFs = PipelineFeatureSource.forLayer( layer, true );
-            
-            FeatureStateTracker.instance().addFeatureListener( this );
+            disposed = true;
+            flush();
         }
-        catch (Exception e) {
-            throw new RuntimeException( e );
+        finally {
+            lock.writeLock().unlock();
         }
     }
 
 
+    /**
+     * The container is shared by all sessions, so flush on commits of all sessions.
+     * The {@link UpdateJob} flushes after its own commit anyway.
+     */
     public void featureChanged( EntityStateEvent ev ) {
         log.info( "ev= " + ev );
         if (ev.getEventType() == EventType.COMMIT
-                && !ev.isMySession()
-                && layer.id().equals( ((ILayer)ev.getSource()).id() )) {
+                && layerId.equals( ((ILayer)ev.getSource()).id() )) {
             flush();
         }
     }
@@ -150,6 +221,7 @@ class ShapefileContainer
                     File f = resolveFile( fileSuffix );
                     FileUtils.deleteQuietly( f );
                 }
+                FileUtils.deleteQuietly( resolveFile( ZIP_SUFFIX ) );
                 file = null;
                 exception = null;
                 lastModified = new Date();
@@ -161,55 +233,101 @@ class ShapefileContainer
     }
     
 
-    public OutputStream getOutputStream( String fileSuffix )
+    /**
+     * Returns a stream to upload the given file of the shapefile. The upload is
+     * written to a temporary file. Closing the stream moves it in place, with the
+     * write lock held, and (re)schedules the {@link UpdateJob}. Readers never see
+     * a partially uploaded file.
+     *
+     * @param layer The layer of the calling session.
+     */
+    public OutputStream getOutputStream( ILayer layer, String fileSuffix )
     throws IOException {
-        // FIXME locking?
-        File f = Path.fromOSString( file.getAbsolutePath() )
-                .removeFileExtension().addFileExtension( fileSuffix ).toFile();
-        
-        // check updateJob
-        if (updateJob != null) {
-            if (updateJob.getState() == Job.RUNNING) {
-                throw new IOException( "Update Job is running, write is not allowed until finished." );
-            }
-            else if (updateJob.getState() == Job.WAITING || updateJob.getState() == Job.SLEEPING) {
-                updateJob.cancel();
-                updateJob.schedule( UPDATE_JOB_DELAY );
+        lock.readLock().lock();
+        try {
+            if (!disposed) {
+                // init shapefile
+                getFileSize( layer, fileSuffix );
+                if (exception != null) {
+                    throw new IOException( exception.getMessage(), exception );
+                }
+                checkUpdateJob();
+
+                File f = resolveFile( fileSuffix );
+                File tmp = File.createTempFile( f.getName() + ".", ".upload", f.getParentFile() );
+                return new UploadStream( layer, f, tmp );
             }
         }
-        else {
-            updateJob = new UpdateJob();
-            updateJob.schedule( UPDATE_JOB_DELAY );
+        finally {
+            lock.readLock().unlock();
+        }
+        // disposed: delegate outside the lock, dispose() holds the lock of instances
+        return of( layer ).getOutputStream( layer, fileSuffix );
+    }
+    
+    
+    protected void checkUpdateJob() throws IOException {
+        if (updateJob != null && updateJob.getState() == Job.RUNNING) {
+            throw new IOException( "Update Job is running, write is not allowed until finished." );
         }
-        
-        return new FileOutputStream( f );
     }
     
     
-    public InputStream getInputStream( String fileSuffix )
+    /**
+     * @param layer The layer of the calling session.
+     */
+    public InputStream getInputStream( ILayer layer, String fileSuffix )
     throws IOException {
-        // FIXME locking?
-        // init shapefile
-        getFileSize( fileSuffix );
-        
-        if (exception == null) {
-            File f = Path.fromOSString( file.getAbsolutePath() )
-                    .removeFileExtension().addFileExtension( fileSuffix ).toFile();
-            return new FileInputStream( f );
+        lock.readLock().lock();
+        try {
+            if (!disposed) {
+                // init shapefile
+                getFileSize( layer, fileSuffix );
+
+                if (exception == null) {
+                    return new FileInputStream( resolveFile( fileSuffix ) );
+                }
+                else {
+                    throw (IOException)exception;
+                }
+            }
         }
-        else {
-            throw (IOException)exception;
+        finally {
+            lock.readLock().unlock();
         }
+        return of( layer ).getInputStream( layer, fileSuffix );
     }
     
 
-    public synchronized Long getFileSize( String fileSuffix ) {
+    /**
+     * The size of the given file. Generates the shapefile if not yet done.
+     * Concurrent callers wait for the first one to finish the generation; a
+     * {@link #flush()} or a running {@link UpdateJob} waits until it is done.
+     *
+     * @param layer The layer of the calling session.
+     */
+    public Long getFileSize( ILayer layer, String fileSuffix ) {
+        lock.readLock().lock();
+        try {
+            if (!disposed) {
+                return fileSize( layer, fileSuffix );
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return of( layer ).getFileSize( layer, fileSuffix );
+    }
+    
+    
+    protected synchronized Long fileSize( ILayer layer, String fileSuffix ) {
         if (file == null) {
             try {
                 exception = null;
 
-                ShapefileGenerator generator = new ShapefileGenerator( layer, site );
-                file = generator.writeShapefile( layerFs.getFeatures() );
+                ShapefileGenerator generator = new ShapefileGenerator( layer );
+                PipelineFeatureSource fs = PipelineFeatureSource.forLayer( layer, true );
+                file = generator.writeShapefile( fs.getFeatures() );
 
                 lastModified = new Date();
             }
@@ -227,12 +345,158 @@ class ShapefileContainer
     }
     
 
+    /**
+     * The zip of all files of the shapefile, written next to the shapefile. 
+     * Generates the shapefile and/or the zip if not yet done.
+     *
+     * @param layer The layer of the calling session.
+     */
+    public File getZipFile( ILayer layer ) throws Exception {
+        lock.readLock().lock();
+        try {
+            if (!disposed) {
+                return zipFile( layer );
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return of( layer ).getZipFile( layer );
+    }
+    
+    
+    protected synchronized File zipFile( ILayer layer ) throws Exception {
+        fileSize( layer, "shp" );
+        if (exception != null) {
+            throw exception;
+        }
+        File zip = resolveFile( ZIP_SUFFIX );
+        if (!zip.exists()) {
+            File tmp = new File( zip.getParentFile(), zip.getName() + ".tmp" );
+            ZipOutputStream zipOut = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+            try {
+                String basename = layer.getLabel();
+                for (String fileSuffix : ShapefileGenerator.FILE_SUFFIXES) {
+                    zipOut.putNextEntry( new ZipEntry( basename + "." + fileSuffix ) );
+                    FileUtils.copyFile( resolveFile( fileSuffix ), zipOut );
+                }
+                zipOut.close();
+                if (!tmp.renameTo( zip )) {
+                    throw new IOException( "Unable to rename: " + tmp );
+                }
+            }
+            finally {
+                IOUtils.closeQuietly( zipOut );
+                FileUtils.deleteQuietly( tmp );
+            }
+        }
+        return zip;
+    }
+    
+
     protected File resolveFile( String fileSuffix ) {
         return Path.fromOSString( file.getAbsolutePath() )
                 .removeFileExtension().addFileExtension( fileSuffix ).toFile();
     }
     
     
+    /**
+     * Moves the uploaded file in place on {@link #close()}.
+     */
+    class UploadStream
+            extends FileOutputStream {
+        
+        private ILayer      layer;
+        
+        private File        f;
+        
+        private File        tmp;
+        
+        private boolean     closed;
+        
+        public UploadStream( ILayer layer, File f, File tmp ) throws IOException {
+            super( tmp );
+            this.layer = layer;
+            this.f = f;
+            this.tmp = tmp;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.writeLock().lock();
+            try {
+                checkUpdateJob();
+                if (updateJob == null) {
+                    // copies the current files as original 
+                    updateJob = new UpdateJob( layer );
+                }
+                else {
+                    updateJob.cancel();
+                }
+                FileUtils.deleteQuietly( f );
+                if (!tmp.renameTo( f )) {
+                    throw new IOException( "Unable to rename: " + tmp );
+                }
+                // the zip is outdated
+                FileUtils.deleteQuietly( resolveFile( ZIP_SUFFIX ) );
+                updateJob.schedule( UPDATE_JOB_DELAY );
+            }
+            finally {
+                FileUtils.deleteQuietly( tmp );
+                lock.writeLock().unlock();
+            }
+        }
+    }
+    
+    
+    /**
+     * The attribute values of an original feature of the {@link UpdateJob}.
+     * Geometries are not kept but just a {@link #digest(Geometry)}, so that the
+     * index of all original features does not hold all geometries of the layer.
+     */
+    static class OrigFeature {
+        
+        /**
+         * A SHA-1 digest of the WKB of the given geometry. Geometries with the same
+         * coordinates (see {@link Geometry#equalsExact(Geometry)}) have the same
+         * digest.
+         */
+        public static ByteBuffer digest( Geometry geom ) {
+            try {
+                MessageDigest md = MessageDigest.getInstance( "SHA-1" );
+                return ByteBuffer.wrap( md.digest( new WKBWriter().write( geom ) ) );
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException( e );
+            }
+        }
+        
+        /** The id of the feature in the shapefile. */
+        String          fid;
+        
+        /** The id of the feature in the layer. */
+        String          origFid;
+        
+        Object[]        values;
+        
+        public OrigFeature( SimpleFeature feature ) {
+            this.fid = feature.getID();
+            this.origFid = (String)feature.getAttribute( ShapefileGenerator.ORIG_FID_FIELD );
+            this.values = feature.getAttributes().toArray();
+            for (int i=0; i<values.length; i++) {
+                if (values[i] instanceof Geometry) {
+                    values[i] = digest( (Geometry)values[i] );
+                }
+            }
+        }
+    }
+    
+    
     /**
      * Do the update on the underlying layer data store.
      * <ol>
@@ -244,14 +508,20 @@ class ShapefileContainer
     class UpdateJob
             extends UIJob {
 
-        private File        origDataDir;
+        private File                    origDataDir;
         
-        private DateFormat  timestampFormat = ShapefileGenerator.timestampFormat();
+        private DateFormat              timestampFormat = ShapefileGenerator.timestampFormat();
 
+        /** The layer of the uploading session. */
+        private ILayer                  layer;
+        
+        private PipelineFeatureSource   layerFs;
+        
 
-        public UpdateJob() 
+        public UpdateJob( ILayer layer ) 
         throws IOException {
             super( "ShapefileContainer.UpdateJob" );
+            this.layer = layer;
 
             // make a copy of the original data
             origDataDir = new File( file.getParentFile(), "original" );
@@ -277,6 +547,8 @@ class ShapefileContainer
             final Updater updater = EntityStateTracker.instance().newUpdater();
 
             try {
+                layerFs = PipelineFeatureSource.forLayer( layer, true );
+                
                 ShapefileDataStoreFactory shapeFactory = new ShapefileDataStoreFactory();
 
                 // modifiedDs
@@ -296,60 +568,64 @@ class ShapefileContainer
                 ShapefileDataStore origDs = shapeFactory.createDataStore( params );
                 final FeatureSource<SimpleFeatureType, SimpleFeature> origFs = origDs.getFeatureSource( typeName );
 
+                // index the original features by orig-fid; single pass; just the
+                // attribute values and a digest of the geometries are kept
+                final SimpleFeatureType schema = origFs.getSchema();
+                final Map<String,OrigFeature> origIndex = new HashMap( 1024 );
+                origFs.getFeatures().accepts( new FeatureVisitor() {
+                    public void visit( Feature feature ) {
+                        String origFid = (String)((SimpleFeature)feature).getAttribute( ShapefileGenerator.ORIG_FID_FIELD );
+                        if (origFid != null) {
+                            origIndex.put( origFid, new OrigFeature( (SimpleFeature)feature ) );
+                        }
+                    }
+                }, null );
+                log.info( "   original features: " + origIndex.size() );
+
                 // modifications
                 final List<SimpleFeature> added = new ArrayList();
-                final List<SimpleFeature[]> modified = new ArrayList();
-                final List<SimpleFeature> removed = new ArrayList();
+                final List<ModifiedFeature> modified = new ArrayList();
 
-                // find added, modified
-                final AtomicInteger newSize = new AtomicInteger( 0 );
+                // find added, modified; single pass, probing the index;
+                // matched entries are removed, so that the remaining are the removed ones
                 updateException = null;
                 modifiedFs.getFeatures().accepts( new FeatureVisitor() {
                     public void visit( Feature candidate ) {
                         if (updateException != null) {
                             return;
                         }
-                        newSize.incrementAndGet();
-                        
                         // normalize attribute names
-                        SimpleFeatureType schema = origFs.getSchema();
                         candidate = normalizeAttributeNames( candidate, schema );
                         
                         try {
-                            Id fid = ff.id( Collections.singleton( candidate.getIdentifier() ) );
-                            Object[] orig = origFs.getFeatures( fid ).toArray();
+                            String origFid = (String)((SimpleFeature)candidate).getAttribute( ShapefileGenerator.ORIG_FID_FIELD );
+                            OrigFeature orig = origFid != null ? origIndex.remove( origFid ) : null;
                             
-                            if (orig.length == 0) {
+                            if (orig == null) {
                                 log.info( "   Feature has been added: " + candidate.getIdentifier() );
                                 added.add( (SimpleFeature)candidate );
                             }
-                            else if (orig.length == 1
-                                    && isFeatureModified( (SimpleFeature)candidate, (SimpleFeature)orig[0] )) {
+                            else if (isFeatureModified( (SimpleFeature)candidate, orig )) {
                                 log.info( "   Feature has been modified: " + candidate.getIdentifier() );
                                 
                                 // FIXME check timestamps; this was done to find out if the features received from client
                                 // are based on the last created shapefile, otherwise we cannot figure what properties
                                 // the client has actually changed; however, see ShapefileGenerator for correct
                                 // creation of timestamps
-//                                if (!isSameTimestamp( (SimpleFeature)candidate, (SimpleFeature)orig[0] )) {
+//                                if (!isSameTimestamp( (SimpleFeature)candidate, orig )) {
 //                                    throw new IllegalStateException( "Timestamps of features do not match." );
 //                                }
                                 
                                 // update feature timestamp (check concurrent modifications within this JVM)
-                                //EntityHandle key = FeatureStateTracker.featureHandle( (Feature)orig[0] );
-                                String id = (String)((SimpleFeature)candidate).getAttribute( ShapefileGenerator.ORIG_FID_FIELD );
                                 String type = FeatureStateTracker.MODEL_TYPE_PREFIX + layerFs.getSchema().getName().getLocalPart();
-                                EntityHandle key = EntityHandle.instance( id, type );
+                                EntityHandle key = EntityHandle.instance( origFid, type );
 
                                 Long timestamp = timestamp( (SimpleFeature)candidate );
                                 updater.checkSet( key, timestamp, null );
                                 
-                                modified.add( new SimpleFeature[] { (SimpleFeature)candidate, (SimpleFeature)orig[0] } );
+                                modified.add( new ModifiedFeature( (SimpleFeature)candidate, orig ) );
                             }
                         }
-                        catch (IOException e) {
-                            log.warn( "", e );
-                        }
                         catch (Exception e) {
                             updateException = e;
                             log.warn( updateException.getLocalizedMessage(), updateException );
@@ -362,26 +638,10 @@ class ShapefileContainer
                     throw updateException;
                 }
                 
-                // find removed
-                FeatureCollection origFeatures = origFs.getFeatures();
-                // check only if necessary
-                if (newSize.get() != (origFeatures.size() - added.size())) {
-                    origFeatures.accepts( new FeatureVisitor() {
-                        public void visit( Feature candidate ) {
-                            try {
-                                Id fid = ff.id( Collections.singleton( candidate.getIdentifier() ) );
-                                Object[] found = modifiedFs.getFeatures( fid ).toArray();
-
-                                if (found.length == 0) {
-                                    log.info( "   Feature has been removed: " + candidate.getIdentifier() );
-                                    removed.add( (SimpleFeature)candidate );
-                                }
-                            }
-                            catch (IOException e) {
-                                log.warn( "", e );
-                            }
-                        }
-                    }, null );
+                // find removed: not matched by any uploaded feature
+                final Collection<String> removed = origIndex.keySet();
+                for (String origFid : removed) {
+                    log.info( "   Feature has been removed: " + origFid );
                 }
                 
                 // write own modifications
@@ -397,36 +657,63 @@ class ShapefileContainer
                     // removed
                     if (!removed.isEmpty()) {
                         Set<Identifier> removeIds = new HashSet();
-                        for (SimpleFeature feature : removed) {
-                            removeIds.add( feature.getIdentifier() );
+                        for (String origFid : removed) {
+                            removeIds.add( ff.featureId( origFid ) );
                         }
                         layerFs.removeFeatures( ff.id( removeIds ) );
                     }
 
-                    // modified
-                    for (SimpleFeature[] feature : modified) {
-                        AttributeDescriptor[] type = {};
-                        Object[] value = {};
-
-                        SimpleFeature orig = feature[1];
-                        SimpleFeature modi = feature[0];
-                        for (Property origProp : orig.getProperties()) {
-                            if (origProp.getDescriptor() instanceof AttributeDescriptor) {
-                                Name propName = origProp.getName();
-                                if (!propName.getLocalPart().equals( ShapefileGenerator.TIMESTAMP_FIELD )) {
-                                    Property newProp = modi.getProperty( propName );
-                                    if (isPropertyModified( origProp.getValue(), newProp.getValue() )) {
-                                        type = (AttributeDescriptor[])ArrayUtils.add( type, origProp.getDescriptor() );
-                                        value = ArrayUtils.add( value, newProp.getValue() );
-
-                                        log.info( "    Attribute modified: " + origProp.getDescriptor().getName() + " = " + newProp.getValue() + " (" + orig.getID() + ")" );
-                                    }
+                    // modified: features with the same changed attributes *and* values are
+                    // modified with one call; features with a modified geometry are
+                    // modified one by one, geometries are not used as keys
+                    Map<List<Object>,ModifiedGroup> groups = new LinkedHashMap();
+                    List<ModifiedGroup> singles = new ArrayList();
+                    for (ModifiedFeature feature : modified) {
+                        List<AttributeDescriptor> type = new ArrayList();
+                        List<Object> value = new ArrayList();
+                        boolean geomModified = false;
+
+                        OrigFeature orig = feature.orig;
+                        SimpleFeature modi = feature.modified;
+                        for (int i=0; i<schema.getAttributeCount(); i++) {
+                            AttributeDescriptor descriptor = schema.getDescriptor( i );
+                            Name propName = descriptor.getName();
+                            if (!propName.getLocalPart().equals( ShapefileGenerator.TIMESTAMP_FIELD )
+                                    && !propName.getLocalPart().equals( ShapefileGenerator.ORIG_FID_FIELD )) {
+                                Property newProp = modi.getProperty( propName );
+                                if (isPropertyModified( newProp.getValue(), orig.values[i] )) {
+                                    type.add( descriptor );
+                                    value.add( newProp.getValue() );
+                                    geomModified |= newProp.getValue() instanceof Geometry;
+
+                                    log.info( "    Attribute modified: " + propName + " (" + orig.fid + ")" );
                                 }
                             }
                         }
-                        String origFid = (String)orig.getAttribute( ShapefileGenerator.ORIG_FID_FIELD );
-                        log.debug( "        fid: shape: " + orig.getID() + ", orig: " + origFid );
-                        layerFs.modifyFeatures( type, value, ff.id( Collections.singleton( ff.featureId( origFid ) ) ) );
+                        log.debug( "        fid: shape: " + orig.fid + ", orig: " + orig.origFid );
+                        
+                        if (geomModified) {
+                            ModifiedGroup single = new ModifiedGroup( type, value );
+                            single.fids.add( ff.featureId( orig.origFid ) );
+                            singles.add( single );
+                        }
+                        else {
+                            List<Object> groupKey = new ArrayList( type.size() * 2 );
+                            groupKey.addAll( type );
+                            groupKey.addAll( value );
+                            groups.computeIfAbsent( groupKey, k -> new ModifiedGroup( type, value ) )
+                                    .fids.add( ff.featureId( orig.origFid ) );
+                        }
+                    }
+                    singles.addAll( groups.values() );
+                    for (ModifiedGroup group : singles) {
+                        if (!group.type.isEmpty()) {
+                            log.debug( "    modifyFeatures: " + group.fids.size() + " features" );
+                            layerFs.modifyFeatures( 
+                                    group.type.toArray( new AttributeDescriptor[group.type.size()] ), 
+                                    group.value.toArray(), 
+                                    ff.id( group.fids ) );
+                        }
                     }
                     tx.commit();
 
@@ -471,22 +758,21 @@ class ShapefileContainer
                 // 'actual' state of the features
                 flush();
                 
+                updateJob = null;
                 lock.writeLock().unlock();
 
                 log.info( "UpdateJob: done." );
-                updateJob = null;
             }
         }
         
 
-        private boolean isFeatureModified( SimpleFeature feature, SimpleFeature original ) 
+        private boolean isFeatureModified( SimpleFeature feature, OrigFeature original ) 
         throws IOException {
-            //SimpleFeatureType schema = original.getType(); 
-            for (int i=0; i<original.getAttributeCount(); i++) {
+            for (int i=0; i<original.values.length; i++) {
                 
                 // asuming that order has not changed (but names may have)
                 Object value1 = feature.getAttribute( i );
-                Object value2 = original.getAttribute( i );
+                Object value2 = original.values[i];
                 
                 if (isPropertyModified( value1, value2 )) {
                     return true;
@@ -496,9 +782,13 @@ class ShapefileContainer
         }
 
         
+        /**
+         * @param value1 The new value.
+         * @param value2 The original value, a {@link OrigFeature#digest(Geometry)} for geometries.
+         */
         private boolean isPropertyModified( Object value1, Object value2 ) {
             if (value1 instanceof Geometry) {
-                if (!((Geometry)value1).equalsExact( (Geometry)value2 )) {
+                if (!OrigFeature.digest( (Geometry)value1 ).equals( value2 )) {
                     return true;
                 }
             }
@@ -530,6 +820,40 @@ class ShapefileContainer
         }
 
 
+        /**
+         * An uploaded feature that was modified, along with its original. 
+         */
+        class ModifiedFeature {
+            
+            SimpleFeature               modified;
+            
+            OrigFeature                 orig;
+
+            public ModifiedFeature( SimpleFeature modified, OrigFeature orig ) {
+                this.modified = modified;
+                this.orig = orig;
+            }
+        }
+        
+        
+        /**
+         * Modified features that have the same changed attributes and values. 
+         */
+        class ModifiedGroup {
+            
+            List<AttributeDescriptor>   type;
+            
+            List<Object>                value;
+            
+            Set<Identifier>             fids = new HashSet();
+
+            public ModifiedGroup( List<AttributeDescriptor> type, List<Object> value ) {
+                this.type = type;
+                this.value = value;
+            }
+        }
+        
+        
         /**
          * Open/Libre Office changes attribute names into upper case :( This method
          * creates a new {@link Feature} with the given shema and the candidate's values.
@@ -19,11 +19,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -82,16 +79,13 @@ public class ShapefileContentProvider
             List<IContentNode> result = new ArrayList();
             
             // shapefile
-            ILayer layer = ((ShapefileFolder)parent).getLayer();
-            ShapefileContainer container = new ShapefileContainer( layer, getSite() );
             for (String fileSuffix : ShapefileGenerator.FILE_SUFFIXES) {
-                result.add( new ShapefileFile( path, this, (ILayer)parent.getSource(),
-                        container, fileSuffix ) );
+                result.add( new ShapefileFile( path, this, (ILayer)parent.getSource(), fileSuffix ) );
             }
             // snapshot.txt
-            result.add( new SnapshotFile( path, this, (ILayer)parent.getSource(), container, getSite() ) );
+            result.add( new SnapshotFile( path, this, (ILayer)parent.getSource(), getSite() ) );
             // shape-zip
-            result.add( new ShapeZipFile( path, this, (ILayer)parent.getSource(), container ) );
+            result.add( new ShapeZipFile( path, this, (ILayer)parent.getSource() ) );
             return result;
         }
 
@@ -149,18 +143,20 @@ public class ShapefileContentProvider
             extends DefaultContentNode
             implements IContentFile, IContentWriteable, IContentDeletable {
 
-        private ShapefileContainer  container;
-        
         private String              fileSuffix;
         
         
         public ShapefileFile( IPath parentPath, IContentProvider provider, ILayer layer,
-                ShapefileContainer container, String fileSuffix ) {
+                String fileSuffix ) {
             super( layer.getLabel() + "." + fileSuffix, parentPath, provider, layer );
-            this.container = container;
             this.fileSuffix = fileSuffix;
         }
 
+        /** The container is shared and may be disposed, so it is not kept. */
+        protected ShapefileContainer container() {
+            return ShapefileContainer.of( (ILayer)getSource() );
+        }
+
         public void delete()
         throws BadRequestException, NotAuthorizedException {
             checkPermission( (ILayer)getSource(), AclPermission.WRITE );
@@ -171,12 +167,13 @@ public class ShapefileContentProvider
 
 
         public Long getContentLength() {
+            ShapefileContainer container = container();
             if (container.exception != null) {
                 log.warn( "", container.exception );
                 return null;
             }
             else {
-                return container.getFileSize( fileSuffix );                
+                return container.getFileSize( (ILayer)getSource(), fileSuffix );                
             }
         }
 
@@ -185,11 +182,12 @@ public class ShapefileContentProvider
         throws IOException, BadRequestException {
             log.debug( "range: " + range + ", params: " + params + ", contentType: " + contentType );
             
+            ShapefileContainer container = container();
             if (container.exception != null) {
                 log.warn( "", container.exception );
             }
             else {
-                InputStream in = container.getInputStream( fileSuffix );                
+                InputStream in = container.getInputStream( (ILayer)getSource(), fileSuffix );                
                 try {
                     IOUtils.copy( in, out );
                 }
@@ -205,7 +203,7 @@ public class ShapefileContentProvider
             log.debug( "replace: " + fileSuffix + " : " + length );
             checkPermission( (ILayer)getSource(), AclPermission.WRITE );
             
-            OutputStream out = container.getOutputStream( fileSuffix );
+            OutputStream out = container().getOutputStream( (ILayer)getSource(), fileSuffix );
             try {
                 IOUtils.copy( in, out );
             }
@@ -232,7 +230,7 @@ public class ShapefileContentProvider
 
 
         public Date getModifiedDate() {
-            return container.lastModified;
+            return container().lastModified;
         }
 
     }
@@ -247,25 +245,25 @@ public class ShapefileContentProvider
 
         private static final FastDateFormat df = FastDateFormat.getInstance( "yyyy-MM-dd@HH-mm-ss" );
         
-        private ShapefileContainer          container;
-        
-        
         public SnapshotFile( IPath parentPath, IContentProvider provider, ILayer layer,
-                ShapefileContainer container, IContentSite site ) {
+                IContentSite site ) {
             super( "snapshot.txt", parentPath, provider, layer );
-            this.container = container;
+        }
+
+        protected ShapefileContainer container() {
+            return ShapefileContainer.of( (ILayer)getSource() );
         }
 
 
         public void delete()
         throws BadRequestException {
-            container.flush();   
+            container().flush();   
         }
 
 
         public byte[] content() {
             try {
-                String modified = df.format( container.lastModified );
+                String modified = df.format( container().lastModified );
                 return Messages.get( getSite().getLocale(), "SnapshotFile_content", 
                         ((ILayer)getSource()).getLabel(), modified ).getBytes( "UTF-8" );
             }
@@ -297,7 +295,7 @@ public class ShapefileContentProvider
 
 
         public Date getModifiedDate() {
-            return container.lastModified;
+            return container().lastModified;
         }
     }
     
@@ -309,32 +307,15 @@ public class ShapefileContentProvider
             extends DefaultContentNode
             implements IContentFile {
 
-        private ShapefileContainer      container;
-        
-        private byte[]                  content;
-        
-        private Date                    modified = new Date();
-        
-        
-        public ShapeZipFile( IPath parentPath, IContentProvider provider, ILayer layer,
-                ShapefileContainer container ) {
+        public ShapeZipFile( IPath parentPath, IContentProvider provider, ILayer layer ) {
             super( layer.getLabel() + ".shp.zip", parentPath, provider, layer );
-            this.container = container;
         }
 
-        
-        public int getSizeInMemory() {
-            try {
-                // initializing the zip just to calculate the cache size should no problem
-                // here since probable getContentLength() is called by the client side anyway
-                return getContentLength().intValue() + super.getSizeInMemory();
-            }
-            catch (Exception e) {
-                return super.getSizeInMemory();
-            }
+        protected ShapefileContainer container() {
+            return ShapefileContainer.of( (ILayer)getSource() );
         }
 
-
+        
         public String getContentType( String accepts ) {
             return "application/zip";
         }
@@ -346,15 +327,16 @@ public class ShapefileContentProvider
 
 
         public Date getModifiedDate() {
-            return modified;
+            return container().lastModified;
         }
 
 
         public Long getContentLength() {
             try {
-                return (long)checkInitContent().length;
+                return container().getZipFile( (ILayer)getSource() ).length();
             }
             catch (Exception e) {
+                log.warn( "Last exception from container: ", e );
                 throw new RuntimeException( "", e );
             }
         }
@@ -363,59 +345,17 @@ public class ShapefileContentProvider
         public void sendContent( OutputStream out, Range range, Map<String,String> params, String contentType )
         throws IOException, BadRequestException {
             log.debug( "range: " + range + ", params: " + params + ", contentType: " + contentType );
+            File zip = null;
             try {
-                checkInitContent();
-                IOUtils.copy( new ByteArrayInputStream( content ), out );
+                zip = container().getZipFile( (ILayer)getSource() );
+            }
+            catch (IOException e) {
+                throw e;
             }
             catch (Exception e) {
                 throw new RuntimeException( "", e );
             }
-        }
-
-        
-        protected synchronized byte[] checkInitContent() 
-        throws Exception {
-            if (container.exception != null) {
-                log.warn( "Last exception from container: ", container.exception );
-                throw container.exception;
-            }
-
-            if (content == null || container.lastModified.after( modified )) {
-                // generate shapefile
-                container.getFileSize( "shp" );
-
-                if (container.exception != null) {
-                    log.warn( "Last exception from container: ", container.exception );
-                    throw container.exception;
-                }
-
-                InputStream in = null;
-                try {
-                    ByteArrayOutputStream bout = new ByteArrayOutputStream( 1024 * 1024 );
-                    ZipOutputStream zipOut = new ZipOutputStream( bout );
-
-                    String basename = container.layer.getLabel();
-
-                    for (String fileSuffix : ShapefileGenerator.FILE_SUFFIXES) {
-                        zipOut.putNextEntry( new ZipEntry( basename + "." + fileSuffix ) );
-                        in = container.getInputStream( fileSuffix );
-                        IOUtils.copy( in, zipOut );
-                        in.close();
-                        
-                    }
-                    zipOut.close();
-                    
-                    content = bout.toByteArray();
-                    modified = new Date();
-                }
-                catch (IOException e) {
-                    throw new RuntimeException( e );
-                }
-                finally {
-                    IOUtils.closeQuietly( in );
-                }
-            }
-            return content;
+            SpooledLayerContent.transfer( zip, range, out );
         }
     }
 
@@ -89,6 +89,21 @@ class ShapefileGenerator {
     }
 
 
+    /**
+     * Create a file in {@link FsPlugin#getCacheDir()} to store the new shapefile in.
+     * The directory is named after the layer id and shared by all sessions.
+     */
+    public ShapefileGenerator( ILayer layer ) {
+        File tmpDir = FsPlugin.getDefault().getCacheDir();
+        String basename = FilenameUtils.normalize( layer.getLabel() );
+        
+        File basedir = new File( tmpDir, "shapefile@" + ((String)layer.id()).replaceAll( "[^\\w.-]", "_" ) );
+        basedir.mkdirs();
+        
+        this.newFile = new File( basedir, basename + ".shp" );
+    }
+
+
     /**
      * Create a temporary file in {@link FsPlugin#getCacheDir()} to store the new shapefile in.
      */
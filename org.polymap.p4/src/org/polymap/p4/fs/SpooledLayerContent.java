@@ -0,0 +1,316 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.fs;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.data.FeatureStateTracker;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.entity.EntityHandle;
+import org.polymap.core.runtime.entity.EntityStateEvent;
+import org.polymap.core.runtime.entity.EntityStateEvent.EventType;
+import org.polymap.core.runtime.entity.EntityStateTracker;
+import org.polymap.core.runtime.entity.IEntityHandleable;
+import org.polymap.core.runtime.entity.IEntityStateListener;
+
+import org.polymap.service.fs.FsPlugin;
+import org.polymap.service.fs.spi.Range;
+
+/**
+ * The encoded content of a layer, spooled to a file in
+ * {@link FsPlugin#getCacheDir()} and shared by the content nodes of all sessions.
+ * The content is encoded lazily on first access, just once, even if several
+ * sessions request it concurrently. The file is deleted when the layer or its
+ * features are committed; the next access encodes the new revision. Instances
+ * that are not accessed for {@link #IDLE_TIMEOUT} are released, together with
+ * their listener; this also cleans up the content of deleted layers.
+ * <p/>
+ * Instances are shared by all sessions, so they keep just the id of the layer.
+ * The {@link ILayer} and the {@link Encoder} of the calling session are passed
+ * to every access that may encode the content. Content nodes should not keep a
+ * reference to an instance but call {@link #of(ILayer, String)} for every
+ * access.
+ *
+ * @author Falko Bräutigam
+ */
+class SpooledLayerContent
+        implements IEntityStateListener {
+
+    private static Log log = LogFactory.getLog( SpooledLayerContent.class );
+
+    /**
+     * Encodes the content of a layer.
+     */
+    public interface Encoder {
+        public void encode( ILayer layer, OutputStream out ) throws Exception;
+    }
+
+    /** Instances not accessed for this time are released. */
+    public static final long        IDLE_TIMEOUT = 30 * 60 * 1000;
+    
+    /** A failed encoding is not retried for this time. */
+    public static final long        FAILURE_TTL = 60 * 1000;
+    
+    /** Guarded by itself. */
+    private static final Map<String,SpooledLayerContent> instances = new HashMap();
+
+    /** Makes the names of the spool files unique. */
+    private static final AtomicLong generations = new AtomicLong();
+
+
+    /**
+     * Returns the shared content for the given layer and key.
+     *
+     * @param layer
+     * @param key Identifies the encoding; including every setting the content
+     *        depends on, like file type and locale.
+     */
+    public static SpooledLayerContent of( ILayer layer, String key ) {
+        String id = layer.id() + "." + key;
+        List<SpooledLayerContent> idle = new ArrayList();
+        SpooledLayerContent result = null;
+        synchronized (instances) {
+            for (SpooledLayerContent instance : instances.values()) {
+                if (instance.isIdle()) {
+                    idle.add( instance );
+                }
+            }
+            result = instances.get( id );
+            if (result == null || result.isIdle()) {
+                result = new SpooledLayerContent( id, layer, key );
+                instances.put( id, result );
+            }
+            result.lastAccess = System.currentTimeMillis();
+        }
+        idle.forEach( instance -> instance.invalidate() );
+        return result;
+    }
+
+
+    /**
+     * Sends the given range of the given file. Uses {@link FileChannel#transferTo}
+     * which allows the OS to copy without buffering in the heap if the target is
+     * a file or socket channel.
+     *
+     * @param f The file to send.
+     * @param range The range to send, or null if the entire file is requested.
+     * @param out
+     */
+    public static void transfer( File f, Range range, OutputStream out ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( f, "r" );
+        try {
+            FileChannel in = raf.getChannel();
+            long start = 0;
+            long end = in.size();
+            if (range != null) {
+                start = range.getStart() != null ? range.getStart() : 0;
+                end = range.getFinish() != null ? Math.min( range.getFinish() + 1, end ) : end;
+            }
+            WritableByteChannel target = Channels.newChannel( out );
+            for (long pos = start; pos < end; ) {
+                pos += in.transferTo( pos, end - pos, target );
+            }
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+
+    // instance *******************************************
+
+    private String                  id;
+
+    private String                  key;
+
+    /** The handle of the layer entity. */
+    private EntityHandle            layerHandle;
+
+    /** The handle that tracks the features of the layer. */
+    private EntityHandle            featuresHandle;
+
+    /** The spooled file; null if not yet spooled or invalidated. */
+    private File                    file;
+
+    /** The time this revision of the content was created. */
+    private Date                    modified = new Date();
+
+    private boolean                 valid = true;
+
+    /** The last failed encoding, or null. */
+    private IOException             failure;
+
+    private long                    failed;
+
+    private volatile long           lastAccess = System.currentTimeMillis();
+
+
+    protected SpooledLayerContent( String id, ILayer layer, String key ) {
+        this.id = id;
+        this.key = key;
+        this.layerHandle = ((IEntityHandleable)layer).handle();
+        this.featuresHandle = FeatureStateTracker.layerHandle( layer );
+        EntityStateTracker.instance().addListener( this );
+    }
+
+
+    protected boolean isIdle() {
+        return System.currentTimeMillis() - lastAccess > IDLE_TIMEOUT;
+    }
+
+
+    /**
+     * The spooled file. Encodes the content if not yet done. Concurrent callers
+     * wait for the first one to finish encoding. An invalidated instance passes
+     * the call to the current instance of the layer.
+     *
+     * @param layer The layer of the calling session.
+     * @param encoder Creates the content if not yet spooled.
+     */
+    public File file( ILayer layer, Encoder encoder ) throws IOException {
+        synchronized (this) {
+            if (valid) {
+                return spool( layer, encoder );
+            }
+        }
+        return of( layer, key ).file( layer, encoder );
+    }
+
+
+    protected File spool( ILayer layer, Encoder encoder ) throws IOException {
+        assert Thread.holdsLock( this );
+        if (failure != null && System.currentTimeMillis() - failed < FAILURE_TTL) {
+            throw new IOException( failure.getMessage(), failure );
+        }
+        if (file == null) {
+            // unique name per generation: deleting the file of an invalidated
+            // instance never hits the file of its successor
+            File f = new File( FsPlugin.getDefault().getCacheDir(), "spool-" + id.replaceAll( "[^\\w.-]", "_" ) 
+                    + "-" + generations.incrementAndGet() );
+            File tmp = new File( f.getParentFile(), f.getName() + ".tmp" );
+            OutputStream out = new BufferedOutputStream( new FileOutputStream( tmp ), 64*1024 );
+            try {
+                encoder.encode( layer, out );
+                out.close();
+                FileUtils.deleteQuietly( f );
+                if (!tmp.renameTo( f )) {
+                    throw new IOException( "Unable to rename: " + tmp );
+                }
+                file = f;
+                failure = null;
+                log.info( "Spooled: " + f.getName() + " (" + FileUtils.byteCountToDisplaySize( f.length() ) + ")" );
+            }
+            catch (IOException e) {
+                failure = e;
+                failed = System.currentTimeMillis();
+                throw e;
+            }
+            catch (Exception e) {
+                failure = new IOException( e );
+                failed = System.currentTimeMillis();
+                throw failure;
+            }
+            finally {
+                if (file == null) {
+                    out.close();
+                    FileUtils.deleteQuietly( tmp );
+                }
+            }
+        }
+        return file;
+    }
+
+
+    /**
+     * The length of the spooled file.
+     *
+     * @return The length, or null if the content is not yet spooled. Listing a
+     *         folder does not trigger the encoding.
+     */
+    public synchronized Long spooledLength() {
+        return file != null ? file.length() : null;
+    }
+
+
+    /**
+     * The time this revision of the content was created. Stable until the layer
+     * is changed.
+     */
+    public synchronized Date getModifiedDate() {
+        return modified;
+    }
+
+
+    /**
+     * Sends the content; encodes it if not yet done.
+     *
+     * @param layer The layer of the calling session.
+     * @param encoder Creates the content if not yet spooled.
+     */
+    public void sendContent( ILayer layer, Encoder encoder, OutputStream out, Range range ) throws IOException {
+        transfer( file( layer, encoder ), range, out );
+    }
+
+
+    public void modelChanged( EntityStateEvent ev ) {
+        if (ev.getEventType() == EventType.COMMIT
+                && (ev.hasChanged( layerHandle ) || ev.hasChanged( featuresHandle ))) {
+            invalidate();
+        }
+    }
+
+
+    /**
+     * Removes this instance from the shared registry and deletes the spooled file.
+     * Readers that currently stream the file are not affected on Unix-like
+     * systems.
+     */
+    public void invalidate() {
+        synchronized (instances) {
+            if (instances.get( id ) == this) {
+                instances.remove( id );
+            }
+        }
+        EntityStateTracker.instance().removeListener( this );
+        synchronized (this) {
+            if (valid) {
+                valid = false;
+                log.info( "Invalidated: " + id );
+                FileUtils.deleteQuietly( file );
+                file = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+import static org.polymap.p4.layer.FeatureLayer.ff;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.Lazy;
+import org.polymap.core.runtime.LockedLazyInit;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+/**
+ * In-memory spatial index of the envelopes of the features of a
+ * {@link FeatureLayer}, used to find the feature under a map click. There is one
+ * index per layer, shared by all sessions. An index is built in the background on
+ * the first click on the layer; until then clicks are answered by a query of the
+ * feature source. Feature commits of any session update the index. The index does
+ * not keep the feature source of a session; callers and events provide it.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureHitIndex {
+
+    private static final Log log = LogFactory.getLog( FeatureHitIndex.class );
+
+    public static final Lazy<FeatureHitIndex> instance = new LockedLazyInit( () -> new FeatureHitIndex() );
+
+    public static final FeatureHitIndex instance() {
+        return instance.get();
+    }
+
+
+    /** A failed build of an index is retried after this time. */
+    public static final long            RETRY_DELAY = 60 * 1000;
+    
+
+    // instance *******************************************
+
+    /** The index of every layer that was clicked yet, by layer id. */
+    private ConcurrentMap<String,LayerHits> indexes = new ConcurrentHashMap();
+
+
+    protected FeatureHitIndex() {
+        // listen to feature commits of all sessions
+        EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev ->
+                ev.getType() == FeatureEvent.Type.COMMIT &&
+                FeatureLayer.layerIdOf( ev.getFeatureSource() ).isPresent() ) );
+    }
+
+
+    /**
+     * Finds a feature of the given layer that intersects the given area.
+     *
+     * @param layer The layer to search.
+     * @param area The area in the CRS of the features of the layer.
+     * @return Any feature that intersects the area.
+     */
+    public Optional<Feature> hit( FeatureLayer layer, Envelope area ) throws Exception {
+        FeatureSource fs = layer.featureSource();
+        LayerHits index = indexes.computeIfAbsent( (String)layer.layer().id(), key -> new LayerHits( key ) );
+
+        Set<FeatureId> candidates = index.candidates( fs, area );
+        Filter filter = ff.intersects( ff.property( "" ), ff.literal( JTS.toGeometry( area ) ) );
+        if (candidates == null) {
+            // not yet built: ask the store directly
+            return any( fs, filter, area );
+        }
+        else if (candidates.isEmpty()) {
+            return Optional.empty();
+        }
+        else {
+            log.debug( "Candidates: " + candidates.size() );
+            return any( fs, ff.id( candidates ), area );
+        }
+    }
+
+
+    /**
+     * The first of the features found by the given filter that actually
+     * intersects the given area.
+     */
+    protected Optional<Feature> any( FeatureSource fs, Filter filter, Envelope area ) throws Exception {
+        Geometry areaGeom = JTS.toGeometry( area );
+        try (
+            FeatureIterator it = fs.getFeatures( filter ).features();
+        ){
+            while (it.hasNext()) {
+                Feature feature = it.next();
+                Object geom = feature.getDefaultGeometryProperty().getValue();
+                if (geom instanceof Geometry && ((Geometry)geom).intersects( areaGeom )) {
+                    return Optional.of( feature );
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+
+    @EventHandler( delay=1000, scope=Event.Scope.JVM )
+    protected void onFeatureCommit( List<FeatureEvent> evs ) {
+        // fids by layer index; null signals: entire layer
+        Map<LayerHits,Set<String>> dirty = new HashMap();
+        Map<LayerHits,FeatureSource> sources = new HashMap();
+        for (FeatureEvent ev : evs) {
+            LayerHits index = indexes.get( FeatureLayer.layerIdOf( ev.getFeatureSource() ).get() );
+            if (index != null) {
+                sources.put( index, ev.getFeatureSource() );
+                if (!dirty.containsKey( index )) {
+                    dirty.put( index, new HashSet() );
+                }
+                Set<String> fids = dirty.get( index );
+                if (fids != null && ev.getFilter() instanceof Id) {
+                    for (Object fid : ((Id)ev.getFilter()).getIDs()) {
+                        fids.add( fid.toString() );
+                    }
+                }
+                else {
+                    dirty.put( index, null );
+                }
+            }
+        }
+        for (Map.Entry<LayerHits,Set<String>> entry : dirty.entrySet()) {
+            FeatureSource fs = sources.get( entry.getKey() );
+            if (entry.getValue() != null) {
+                entry.getKey().update( fs, entry.getValue() );
+            }
+            else {
+                entry.getKey().rebuild( fs );
+            }
+        }
+    }
+
+
+    /**
+     * The index of one layer.
+     * <p/>
+     * Commits during a rebuild are queued and applied after the rebuild. A failed
+     * rebuild is logged and retried on the first click after {@link #RETRY_DELAY}.
+     */
+    protected class LayerHits {
+
+        private String                  layerId;
+
+        /** Guarded by this; null if not yet built. */
+        private Quadtree                tree;
+
+        /** The envelopes in {@link #tree}, by fid; needed to remove entries. */
+        private Map<String,Envelope>    envelopes;
+
+        /** Guarded by this; true while a rebuild job is running. */
+        private boolean                 building;
+        
+        /** Guarded by this; the fids committed while {@link #building}. */
+        private Set<String>             pending = new HashSet();
+        
+        /** Guarded by this; the time of the last failed rebuild, or 0. */
+        private long                    failed;
+
+
+        public LayerHits( String layerId ) {
+            this.layerId = layerId;
+        }
+
+
+        /**
+         * The ids of the features whose envelope intersects the given area. Starts
+         * building the index if not yet done.
+         *
+         * @param fs The feature source of the calling session, used to build the index.
+         * @return The ids, or null if the index is not yet built.
+         */
+        public synchronized Set<FeatureId> candidates( FeatureSource fs, Envelope area ) {
+            if (tree == null) {
+                if (!building && System.currentTimeMillis() - failed > RETRY_DELAY) {
+                    rebuild( fs );
+                }
+                return null;
+            }
+            Set<FeatureId> result = new HashSet();
+            for (Object item : tree.query( area )) {
+                // query() returns all items of the matching nodes; check envelope
+                String fid = (String)item;
+                if (envelopes.get( fid ).intersects( area )) {
+                    result.add( ff.featureId( fid ) );
+                }
+            }
+            return result;
+        }
+
+
+        public synchronized void rebuild( FeatureSource fs ) {
+            tree = null;
+            envelopes = null;
+            if (building) {
+                // the running job may have loaded the features before the commit;
+                // null signals the job to rebuild again
+                pending = null;
+                return;
+            }
+            pending = new HashSet();
+            building = true;
+            new UIJob( "Spatial index" ) {
+                @Override
+                protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                    Timer timer = new Timer();
+                    try {
+                        Map<String,Envelope> newEnvelopes = load( fs, Filter.INCLUDE );
+                        Quadtree newTree = new Quadtree();
+                        newEnvelopes.forEach( (fid,envelope) -> newTree.insert( envelope, fid ) );
+                        synchronized (LayerHits.this) {
+                            building = false;
+                            if (pending == null) {
+                                // entire layer changed while loading
+                                pending = new HashSet();
+                                rebuild( fs );
+                                return;
+                            }
+                            tree = newTree;
+                            envelopes = newEnvelopes;
+                            failed = 0;
+                            if (!pending.isEmpty()) {
+                                update( fs, pending );
+                                pending = new HashSet();
+                            }
+                        }
+                        log.info( layerId + ": indexed: " + newEnvelopes.size() + " (" + timer.elapsedTime() + "ms)" );
+                    }
+                    catch (Exception e) {
+                        log.warn( layerId + ": building index failed, retry after " + RETRY_DELAY + "ms", e );
+                        synchronized (LayerHits.this) {
+                            building = false;
+                            failed = System.currentTimeMillis();
+                            pending = new HashSet();
+                        }
+                    }
+                }
+            }.schedule();
+        }
+
+
+        public void update( FeatureSource fs, Set<String> fids ) {
+            synchronized (this) {
+                if (building) {
+                    // applied after the rebuild
+                    if (pending != null) {
+                        pending.addAll( fids );
+                    }
+                    return;
+                }
+                else if (tree == null) {
+                    return;  // not built; the next build loads all features anyway
+                }
+            }
+            new UIJob( "Spatial index update" ) {
+                @Override
+                protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                    Set<FeatureId> ids = new HashSet();
+                    fids.forEach( fid -> ids.add( ff.featureId( fid ) ) );
+                    Map<String,Envelope> addedEnvelopes = load( fs, ff.id( ids ) );
+
+                    synchronized (LayerHits.this) {
+                        if (building) {
+                            // a rebuild started meanwhile; re-load after it
+                            if (pending != null) {
+                                pending.addAll( fids );
+                            }
+                            return;
+                        }
+                        else if (tree == null) {
+                            return;
+                        }
+                        for (String fid : fids) {
+                            Envelope old = envelopes.remove( fid );
+                            if (old != null) {
+                                tree.remove( old, fid );
+                            }
+                        }
+                        for (Map.Entry<String,Envelope> entry : addedEnvelopes.entrySet()) {
+                            tree.insert( entry.getValue(), entry.getKey() );
+                            envelopes.put( entry.getKey(), entry.getValue() );
+                        }
+                    }
+                }
+            }.schedule();
+        }
+
+
+        /**
+         * Loads the envelopes of the features found by the given filter, reading
+         * just the geometry attribute.
+         */
+        protected Map<String,Envelope> load( FeatureSource fs, Filter filter ) throws Exception {
+            Map<String,Envelope> result = new HashMap( 1024 );
+            GeometryDescriptor geomDescriptor = fs.getSchema().getGeometryDescriptor();
+            Query query = new Query( fs.getSchema().getName().getLocalPart(), filter,
+                    new String[] {geomDescriptor.getLocalName()} );
+            try (
+                FeatureIterator it = fs.getFeatures( query ).features();
+            ){
+                while (it.hasNext()) {
+                    Feature feature = it.next();
+                    Envelope envelope = new Envelope( ReferencedEnvelope.reference( feature.getBounds() ) );
+                    String fid = feature.getIdentifier().getID();
+                    result.put( fid, envelope );
+                }
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.polymap.p4.layer.FeatureLayer.ff;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+
+import org.polymap.p4.layer.FeatureLayer.Mode;
+
+/**
+ * A set of features of one layer, stored as a bitmap over the
+ * {@link Ordinals} of the layer. Set operations of all {@link Mode}s are
+ * word-wise operations on the bitmaps. Instances are immutable.
+ * <p/>
+ * The ordinals of a layer are renewed when its features are committed, so
+ * that fids of deleted features do not pile up. Sets of the former ordinals
+ * are re-mapped when combined with a set of the current ones.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureIdSet {
+
+    /**
+     * Stable mapping of the fids of one layer to dense int ordinals. Ordinals are
+     * assigned in the order fids are first seen and are never reused, so bitmaps
+     * stay valid as long as the mapping lives. Shared by all sessions.
+     */
+    public static class Ordinals {
+
+        private ConcurrentMap<String,Integer> ordinals = new ConcurrentHashMap( 1024 );
+
+        /** Guarded by this. */
+        private List<String>    fids = new ArrayList( 1024 );
+
+        public int ordinal( String fid ) {
+            Integer result = ordinals.get( fid );
+            if (result == null) {
+                synchronized (this) {
+                    result = ordinals.computeIfAbsent( fid, key -> {
+                        fids.add( key );
+                        return fids.size() - 1;
+                    });
+                }
+            }
+            return result;
+        }
+
+        /**
+         * The ordinal of the given fid, without assigning one.
+         *
+         * @return The ordinal, or -1 if the fid was not seen yet.
+         */
+        public int indexOf( String fid ) {
+            Integer result = ordinals.get( fid );
+            return result != null ? result : -1;
+        }
+
+        public synchronized String fid( int ordinal ) {
+            return fids.get( ordinal );
+        }
+
+        public int size() {
+            return ordinals.size();
+        }
+    }
+
+
+    /**
+     * Materializes the features of the given {@link FeatureSource} that match the
+     * given filter. {@link Id} filters are mapped without accessing the
+     * features, any other filter is queried for the fids only.
+     */
+    public static FeatureIdSet of( FeatureSource fs, Filter filter, Ordinals ordinals ) throws Exception {
+        BitSet bits = new BitSet();
+        if (filter instanceof Id) {
+            for (Object fid : ((Id)filter).getIDs()) {
+                bits.set( ordinals.ordinal( fid.toString() ) );
+            }
+        }
+        else if (!Filter.EXCLUDE.equals( filter )) {
+            Query query = new Query( fs.getSchema().getName().getLocalPart(), filter, Query.NO_NAMES );
+            try (
+                FeatureIterator it = fs.getFeatures( query ).features();
+            ){
+                while (it.hasNext()) {
+                    bits.set( ordinals.ordinal( it.next().getIdentifier().getID() ) );
+                }
+            }
+        }
+        return new FeatureIdSet( bits, ordinals );
+    }
+
+
+    // instance *******************************************
+
+    private BitSet          bits;
+
+    private Ordinals        ordinals;
+
+    /** Lazily exported {@link #toFilter()}. */
+    private volatile Filter filter;
+
+
+    protected FeatureIdSet( BitSet bits, Ordinals ordinals ) {
+        this.bits = bits;
+        this.ordinals = ordinals;
+    }
+
+
+    /**
+     * Combines this set with the given one according to the given {@link Mode}.
+     *
+     * @return Newly created set.
+     */
+    public FeatureIdSet combine( FeatureIdSet other, Mode mode ) {
+        if (mode == Mode.REPLACE) {
+            return other;
+        }
+        if (ordinals != other.ordinals) {
+            return remap( other.ordinals ).combine( other, mode );
+        }
+        BitSet result = (BitSet)bits.clone();
+        switch (mode) {
+            case ADD:
+                result.or( other.bits ); break;
+            case DIFFERENCE:
+                result.andNot( other.bits ); break;
+            case INTERSECT:
+                result.and( other.bits ); break;
+            default:
+                throw new RuntimeException( "Unhandled mode: " + mode );
+        }
+        return new FeatureIdSet( result, ordinals );
+    }
+
+
+    /**
+     * This set mapped to the given {@link Ordinals}.
+     *
+     * @return Newly created set, or this if the ordinals are the same.
+     */
+    public FeatureIdSet remap( Ordinals target ) {
+        if (target == ordinals) {
+            return this;
+        }
+        BitSet result = new BitSet();
+        for (int i = bits.nextSetBit( 0 ); i >= 0; i = bits.nextSetBit( i+1 )) {
+            result.set( target.ordinal( ordinals.fid( i ) ) );
+        }
+        return new FeatureIdSet( result, target );
+    }
+
+
+    public int size() {
+        return bits.cardinality();
+    }
+
+
+    public boolean isEmpty() {
+        return bits.isEmpty();
+    }
+
+
+    public boolean contains( String fid ) {
+        int ordinal = ordinals.indexOf( fid );
+        return ordinal >= 0 && bits.get( ordinal );
+    }
+
+
+    /**
+     * Exports this set as {@link Id} filter, or {@link Filter#EXCLUDE} if empty.
+     */
+    public Filter toFilter() {
+        if (filter == null) {
+            if (bits.isEmpty()) {
+                filter = Filter.EXCLUDE;
+            }
+            else {
+                Set<FeatureId> fids = new HashSet( bits.cardinality() * 2 );
+                for (int i = bits.nextSetBit( 0 ); i >= 0; i = bits.nextSetBit( i+1 )) {
+                    fids.add( ff.featureId( ordinals.fid( i ) ) );
+                }
+                filter = ff.id( fids );
+            }
+        }
+        return filter;
+    }
+
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + size() + "]";
+    }
+
+}
@@ -14,13 +14,25 @@
  */
 package org.polymap.p4.layer;
 
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 
 import org.geotools.data.DataStore;
+import org.geotools.data.FeatureEvent;
 import org.geotools.data.FeatureSource;
 import org.opengis.feature.Feature;
 import org.opengis.filter.Filter;
@@ -29,6 +41,8 @@ import org.opengis.filter.FilterFactory2;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.collect.MapMaker;
+
 import org.eclipse.core.runtime.IProgressMonitor;
 
 import org.polymap.core.data.DataPlugin;
@@ -42,6 +56,8 @@ import org.polymap.core.runtime.JobExecutor;
 import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.UIThreadExecutor;
 import org.polymap.core.runtime.cache.Cache;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
 import org.polymap.core.runtime.event.EventManager;
 import org.polymap.core.runtime.session.SessionSingleton;
 
@@ -54,6 +70,12 @@ import org.polymap.p4.data.P4PipelineIncubator;
  * {@link #clicked()} feature for layers which are connected to a {@link DataStore}.
  * There is one instance per layer per session, retrieved via {@link #of(ILayer)}.
  * <p/>
+ * The resolved data source of the layer is shared by the instances of all
+ * sessions. It is kept as long as it is referenced by an instance and for
+ * {@link #IDLE_TIMEOUT} afterwards. It is re-resolved if the resource identifier
+ * of the layer has changed. The pipeline and {@link PipelineFeatureSource}, the
+ * {@link #filter()} and {@link #clicked()} state are per session.
+ * <p/>
  * The currently <b>active</b> layer and its selection is stored in
  * {@link P4Panel#featureSelection()}.
  *
@@ -118,6 +140,151 @@ public class FeatureLayer {
     }
     
 
+    /**
+     * The id of the layer of the given {@link FeatureSource}. This works for the
+     * {@link #featureSource()} of the {@link FeatureLayer}s of <b>all</b>
+     * sessions. Allows JVM scoped listeners to find the layer of a
+     * {@link FeatureEvent} that was published by another session.
+     *
+     * @return The layer id, or {@link Optional#empty()} if the given fs does not
+     *         belong to a {@link FeatureLayer}.
+     */
+    public static Optional<String> layerIdOf( FeatureSource fs ) {
+        return Optional.ofNullable( layerIds.get( fs ) );
+    }
+    
+    /** Weak keys: does not prevent {@link PipelineFeatureSource}s from being GCed. */
+    private static ConcurrentMap<FeatureSource,String> layerIds = new MapMaker().weakKeys().makeMap();
+    
+
+    /** The time a connection is kept after the last reference was released. */
+    public static final long            IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis( 10 );
+    
+    /** The connections of the instances of all sessions, by layer id. */
+    private static ConcurrentMap<String,Connection> connections = new ConcurrentHashMap( 32 );
+    
+    /** Keeps the {@link ConnectionRef}s reachable until enqueued. */
+    private static Set<ConnectionRef>   connectionRefs = ConcurrentHashMap.newKeySet();
+    
+    private static ReferenceQueue<FeatureLayer> released = new ReferenceQueue();
+
+    /** Renews the {@link Connection#ordinals} on commit. */
+    private static CommitListener       commitListener = new CommitListener();
+
+    
+    /**
+     * Releases the connections of GCed instances and evicts connections that are
+     * idle for more than {@link #IDLE_TIMEOUT}.
+     */
+    protected static void expungeConnections() {
+        long now = System.currentTimeMillis();
+        for (ConnectionRef ref = (ConnectionRef)released.poll(); ref != null; ref = (ConnectionRef)released.poll()) {
+            connectionRefs.remove( ref );
+            if (ref.connection.refs.decrementAndGet() == 0) {
+                ref.connection.lastReleased = now;
+            }
+        }
+        connections.values().removeIf( connection -> {
+            boolean idle = connection.refs.get() <= 0 && now - connection.lastReleased > IDLE_TIMEOUT;
+            if (idle) {
+                log.info( "Evicting idle data source: " + connection.resourceIdentifier );
+            }
+            return idle;
+        });
+    }
+    
+    
+    /**
+     * The resolved data source of a layer, shared by the instances of all
+     * sessions. Just the read-only {@link DataSourceDescription} (service and
+     * {@link DataStore}) is shared; every instance creates its own pipeline and
+     * {@link PipelineFeatureSource}, so that the transaction state of a
+     * FeatureStore never leaks between sessions.
+     */
+    protected static class Connection {
+        
+        public String                   resourceIdentifier;
+        
+        /** The resolved data source; completed by the caller that claimed it. */
+        public CompletableFuture<DataSourceDescription> dsd = new CompletableFuture();
+        
+        /** Set by the caller that resolves the data source. */
+        public AtomicBoolean            claimed = new AtomicBoolean();
+        
+        public AtomicInteger            refs = new AtomicInteger();
+        
+        public volatile long            lastReleased = System.currentTimeMillis();
+        
+        /**
+         * The fid ordinals of the {@link FeatureIdSet} selections of all sessions.
+         * Renewed when features of the layer are committed.
+         */
+        public volatile FeatureIdSet.Ordinals ordinals = new FeatureIdSet.Ordinals();
+        
+        public Connection( String resourceIdentifier ) {
+            this.resourceIdentifier = resourceIdentifier;
+        }
+        
+        /**
+         * Resolves the data source of the given layer, outside the lock of
+         * {@link FeatureLayer#connections}. On failure the connection is removed,
+         * so that the next caller tries again.
+         */
+        protected void connect( ILayer layer, IProgressMonitor monitor ) {
+            log.info( "connect: " + layer.label.get() );
+            try {
+                dsd.complete( AllResolver.instance().connectLayer( layer, monitor )
+                        .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) ) );
+            }
+            catch (Throwable e) {
+                connections.remove( (String)layer.id(), this );
+                dsd.completeExceptionally( e );
+            }
+        }
+    }
+
+    
+    /**
+     * Releases the {@link Connection} when the referent {@link FeatureLayer} is GCed.
+     */
+    protected static class ConnectionRef
+            extends WeakReference<FeatureLayer> {
+        
+        public Connection       connection;
+
+        public ConnectionRef( FeatureLayer referent, Connection connection ) {
+            super( referent, released );
+            this.connection = connection;
+        }
+    }
+    
+
+    /**
+     * Renews the {@link Connection#ordinals} of a layer when its features are
+     * committed by any session. The ordinals of deleted features are dropped
+     * this way; the current selections are re-mapped on next
+     * {@link FeatureLayer#select(Filter, Mode)}.
+     */
+    protected static class CommitListener {
+
+        public CommitListener() {
+            EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev ->
+                    ev.getType() == FeatureEvent.Type.COMMIT &&
+                    layerIdOf( ev.getFeatureSource() ).isPresent() ) );
+        }
+
+        @EventHandler( scope=Event.Scope.JVM )
+        protected void onFeatureCommit( FeatureEvent ev ) {
+            Connection connection = connections.get( layerIdOf( ev.getFeatureSource() ).get() );
+            if (connection != null && connection.ordinals.size() > 0) {
+                log.debug( "Renewing ordinals: " + connection.resourceIdentifier 
+                        + " (" + connection.ordinals.size() + ")" );
+                connection.ordinals = new FeatureIdSet.Ordinals();
+            }
+        }
+    }
+
+
     private static class SessionHolder
             extends SessionSingleton {
     
@@ -138,6 +305,11 @@ public class FeatureLayer {
     
     private Filter                      filter = Filter.INCLUDE;
     
+    /** The materialized {@link #filter}; null if all features are selected. */
+    private FeatureIdSet                selection;
+    
+    private Connection                  connection;
+    
     private Optional<Feature>           clicked = Optional.empty();
     
     
@@ -149,15 +321,34 @@ public class FeatureLayer {
     protected FeatureLayer doConnectLayer( IProgressMonitor monitor ) throws PipelineIncubationException, Exception {
         assert fs == null;
         log.info( "doConnectLayer(): " + layer.label.get() );
-        // resolve service
-        DataSourceDescription dsd = AllResolver.instance().connectLayer( layer, monitor )
-                .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) );
+        expungeConnections();
+        
+        // just install the entry under the lock; resolve outside 
+        String resId = layer.resourceIdentifier.get();
+        Connection connection = connections.compute( (String)layer.id(), (key, current) -> {
+            return current != null && Objects.equals( current.resourceIdentifier, resId )
+                    ? current : new Connection( resId );
+        });
+        if (connection.claimed.compareAndSet( false, true )) {
+            connection.connect( layer, monitor );
+        }
+        DataSourceDescription dsd = null;
+        try {
+            dsd = connection.dsd.get();
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+        connection.refs.incrementAndGet();
+        connectionRefs.add( new ConnectionRef( this, connection ) );
+        this.connection = connection;
 
-        // create pipeline for it
+        // create pipeline for it; per session
         Pipeline pipeline = P4PipelineIncubator.forLayer( layer )
                 .newPipeline( FeaturesProducer.class, dsd, null );
         if (pipeline != null && pipeline.length() > 0) {
             fs = new PipelineFeatureSource( pipeline );
+            layerIds.put( fs, (String)layer.id() );
         }
         return this;
     }
@@ -201,17 +392,45 @@ public class FeatureLayer {
     }
 
 
+    /**
+     * Changes the {@link #filter()} of this layer. The given filter is
+     * materialized as a {@link FeatureIdSet}, so that the resulting filter is a
+     * plain {@link org.opengis.filter.Id} filter no matter how many selections
+     * have been combined. {@link Filter#INCLUDE} selects all features.
+     * <p/>
+     * This may query the {@link #featureSource()}, so avoid calling from the
+     * display thread.
+     *
+     * @param selection The filter to combine with the current filter.
+     * @param mode How to combine with the current filter.
+     */
     public void select( Filter selection, Mode mode ) {
         assert isValid();
         Filter old = filter;
-        switch (mode) {
-            case REPLACE: 
-                filter = selection; break;
-            case ADD: 
-                filter = ff.or( filter, selection ); break;
-            default: 
-                throw new RuntimeException( "Unhandled mode: " + mode );
+        FeatureIdSet.Ordinals ordinals = connection.ordinals;
+        try {
+            if (mode == Mode.REPLACE || (mode == Mode.INTERSECT && this.selection == null)) {
+                // all features selected: just the new selection matters
+                this.selection = Filter.INCLUDE.equals( selection ) 
+                        ? null : FeatureIdSet.of( fs, selection, ordinals );
+            }
+            else if (mode == Mode.ADD && (this.selection == null || Filter.INCLUDE.equals( selection ))) {
+                this.selection = null;
+            }
+            else {
+                FeatureIdSet current = this.selection != null 
+                        ? this.selection : FeatureIdSet.of( fs, Filter.INCLUDE, ordinals );
+                this.selection = current.combine( FeatureIdSet.of( fs, selection, ordinals ), mode );
+            }
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException( e );
         }
+        filter = this.selection != null ? this.selection.toFilter() : Filter.INCLUDE;
+        
         // event
         EventManager.instance().publish( new FeatureSelectionEvent( this, filter, old ) );
     }
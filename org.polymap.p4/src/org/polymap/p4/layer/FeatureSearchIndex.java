@@ -0,0 +1,284 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.io.File;
+
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureSource;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.Feature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.FluentIterable;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.CorePlugin;
+import org.polymap.core.data.DataPlugin;
+import org.polymap.core.runtime.Lazy;
+import org.polymap.core.runtime.LockedLazyInit;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.indexing.LowerCaseTokenFilter;
+import org.polymap.rhei.fulltext.store.lucene.LuceneFulltextIndex;
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * Fulltext index of the content of the features of a {@link FeatureLayer}, used by
+ * the search of the {@link FeatureSelectionTable}. There is one index per layer,
+ * shared by all sessions. An index is built on first search and updated when
+ * features of the layer are committed in any session.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureSearchIndex
+        extends Configurable {
+
+    private static final Log log = LogFactory.getLog( FeatureSearchIndex.class );
+
+    public static final Lazy<FeatureSearchIndex> instance = new LockedLazyInit( () -> new FeatureSearchIndex() );
+
+    public static final FeatureSearchIndex instance() {
+        return instance.get();
+    }
+
+    public static final int             BATCH_SIZE = 250;
+
+
+    // instance *******************************************
+
+    /**
+     * The maximum number of features returned by
+     * {@link #search(FeatureLayer, String, IProgressMonitor)}, see
+     * {@link #isTruncated(Filter)}.
+     */
+    @Mandatory
+    @DefaultInt( 10000 )
+    public Config<Integer>              maxResults;
+
+    private File                        baseDir;
+
+    /** The index of every layer that was searched yet, by layer id. */
+    private ConcurrentMap<String,LayerIndex> indexes = new ConcurrentHashMap();
+
+
+    protected FeatureSearchIndex() {
+        ConfigurationFactory.inject( this );
+
+        // the indexes are not persistent; start with an empty dir
+        baseDir = new File( CorePlugin.getDataLocation( P4Plugin.instance() ), "searchIndex" );
+        FileUtils.deleteQuietly( baseDir );
+        baseDir.mkdirs();
+
+        // listen to feature commits of all sessions
+        EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev ->
+                ev.getType() == FeatureEvent.Type.COMMIT &&
+                FeatureLayer.layerIdOf( ev.getFeatureSource() ).isPresent() ) );
+    }
+
+
+    /**
+     * Searches the features of the given layer. Builds the index of the layer if
+     * not yet done. This might take a while for big layers, so call this outside
+     * the display thread.
+     *
+     * @param layer The layer to search.
+     * @param query The text to search for. Allowed wildcards are * and ?, all
+     *        other special chars of the Lucene query syntax are searched as text.
+     * @return The filter to apply to the {@link FeatureLayer#featureSource()}. Check
+     *         {@link #isTruncated(Filter)} to tell the user that not all features
+     *         are found.
+     */
+    public Filter search( FeatureLayer layer, String query, IProgressMonitor monitor ) throws Exception {
+        if (StringUtils.isBlank( query )) {
+            return Filter.INCLUDE;
+        }
+        LayerIndex index = indexes.computeIfAbsent( (String)layer.layer().id(),
+                key -> new LayerIndex( key ) );
+        index.ensureBuilt( layer.featureSource(), monitor );
+
+        String escaped = FulltextQueries.escape( query.toLowerCase() );
+        Set<FeatureId> fids = FluentIterable.from( index.index.search( escaped, maxResults.get() ) )
+                .transform( json -> DataPlugin.ff.featureId( json.getString( FulltextIndex.FIELD_ID ) ) )
+                .toSet();
+        if (fids.size() >= maxResults.get()) {
+            log.info( "Max results reached: " + layer.layer().label.get() + " -- " + query );
+        }
+        return !fids.isEmpty() ? DataPlugin.ff.id( fids ) : Filter.EXCLUDE;
+    }
+
+
+    /**
+     * True if the given result of {@link #search(FeatureLayer, String, IProgressMonitor)}
+     * was cut at {@link #maxResults}.
+     */
+    public boolean isTruncated( Filter filter ) {
+        return filter instanceof Id && ((Id)filter).getIDs().size() >= maxResults.get();
+    }
+
+
+    /**
+     * Updates the indexes of the layers of the committed features. Just the
+     * features with the given ids are re-indexed if the event provides an
+     * {@link Id} filter, otherwise the entire layer.
+     */
+    @EventHandler( delay=1000, scope=Event.Scope.JVM )
+    protected void onFeatureCommit( List<FeatureEvent> evs ) {
+        Map<LayerIndex,Set<String>> dirty = new HashMap();
+        Map<LayerIndex,FeatureSource> sources = new HashMap();
+        for (FeatureEvent ev : evs) {
+            LayerIndex index = indexes.get( FeatureLayer.layerIdOf( ev.getFeatureSource() ).get() );
+            if (index != null) {
+                sources.put( index, ev.getFeatureSource() );
+                if (!dirty.containsKey( index )) {
+                    dirty.put( index, new HashSet() );
+                }
+                Set<String> fids = dirty.get( index );
+                if (fids == null) {
+                    // entire layer already
+                }
+                else if (ev.getFilter() instanceof Id) {
+                    for (Object fid : ((Id)ev.getFilter()).getIDs()) {
+                        fids.add( fid.toString() );
+                    }
+                }
+                else {
+                    // null signals: entire layer
+                    dirty.put( index, null );
+                }
+            }
+        }
+        for (Map.Entry<LayerIndex,Set<String>> entry : dirty.entrySet()) {
+            new UIJob( "Update search index" ) {
+                @Override
+                protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                    entry.getKey().update( sources.get( entry.getKey() ), entry.getValue(), monitor );
+                }
+            }.schedule();
+        }
+    }
+
+
+    /**
+     * The index of one layer.
+     */
+    protected class LayerIndex {
+
+        private String                  layerId;
+
+        private LuceneFulltextIndex     index;
+
+        private FulltextFeatureTransformer transformer = new FulltextFeatureTransformer();
+
+        /** The ids of the features in the index; null if not yet built. */
+        private Set<String>             indexed;
+
+
+        public LayerIndex( String layerId ) {
+            this.layerId = layerId;
+            try {
+                index = new LuceneFulltextIndex( new File( baseDir, layerId.replaceAll( "[^\\w.-]", "_" ) ) );
+                index.addTokenFilter( new LowerCaseTokenFilter() );
+            }
+            catch (Exception e) {
+                throw new RuntimeException( e );
+            }
+        }
+
+
+        protected synchronized void ensureBuilt( FeatureSource fs, IProgressMonitor monitor ) throws Exception {
+            if (indexed == null) {
+                update( fs, null, monitor );
+            }
+        }
+
+
+        /**
+         * Indexes the given features, or all features of the layer.
+         *
+         * @param fids The ids of the features to update, or null to update all.
+         */
+        protected synchronized void update( FeatureSource fs, Set<String> fids, IProgressMonitor monitor ) throws Exception {
+            if (indexed == null && fids != null) {
+                return;  // not yet built; build on next search
+            }
+            Timer timer = new Timer();
+            Set<String> stale = fids != null ? new HashSet( fids ) : indexed != null ? new HashSet( indexed ) : new HashSet();
+            Set<String> result = indexed != null ? new HashSet( indexed ) : new HashSet();
+            int count = 0;
+            try (
+                Updater updater = index.prepareUpdate();
+            ){
+                Filter filter = fids != null
+                        ? DataPlugin.ff.id( FluentIterable.from( fids ).transform( fid -> DataPlugin.ff.featureId( fid ) ).toSet() )
+                        : Filter.INCLUDE;
+                try (
+                    FeatureIterator it = fs.getFeatures( filter ).features();
+                ){
+                    monitor.beginTask( "Indexing", IProgressMonitor.UNKNOWN );
+                    while (it.hasNext()) {
+                        Feature feature = it.next();
+                        updater.store( transformer.transform( feature ), true );
+                        stale.remove( feature.getIdentifier().getID() );
+                        result.add( feature.getIdentifier().getID() );
+                        if (++count % BATCH_SIZE == 0) {
+                            monitor.worked( BATCH_SIZE );
+                        }
+                    }
+                }
+                // removed
+                for (String fid : stale) {
+                    updater.remove( fid );
+                    result.remove( fid );
+                }
+                updater.apply();
+            }
+            indexed = result;
+            monitor.done();
+            log.info( layerId + ": indexed: " + count + ", removed: " + stale.size() + " (" + timer.elapsedTime() + "ms)" );
+        }
+    }
+
+}
@@ -29,7 +29,6 @@ import org.geotools.data.FeatureStore;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.PropertyDescriptor;
 import org.opengis.filter.Filter;
-import org.opengis.filter.PropertyIsLike;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
@@ -44,6 +43,10 @@ import org.eclipse.swt.widgets.Label;
 
 import org.eclipse.jface.viewers.StructuredSelection;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.UIThreadExecutor;
 import org.polymap.core.runtime.event.EventHandler;
 import org.polymap.core.runtime.event.EventManager;
 import org.polymap.core.runtime.event.TypeEventFilter;
@@ -56,6 +59,7 @@ import org.polymap.rhei.batik.app.SvgImageRegistryHelper;
 import org.polymap.rhei.batik.contribution.ContributionManager;
 import org.polymap.rhei.batik.toolkit.ActionText;
 import org.polymap.rhei.batik.toolkit.ClearTextAction;
+import org.polymap.rhei.batik.toolkit.Snackbar.Appearance;
 import org.polymap.rhei.batik.toolkit.TextActionItem;
 import org.polymap.rhei.batik.toolkit.md.MdAppDesign;
 import org.polymap.rhei.batik.toolkit.md.MdAppDesign.FontStyle;
@@ -94,6 +98,12 @@ public abstract class FeatureSelectionTable {
 
     private MdToolbar2                  toolbar;
 
+    /** The running search, or null. Accessed in the UI thread only. */
+    private UIJob                       searchJob;
+
+    /** Incremented by every search; results of former searches are dropped. */
+    private int                         searchGeneration;
+
     
     public FeatureSelectionTable( Composite parent, FeatureLayer featureLayer, IPanel panel ) {
         BatikApplication.instance().getContext().propagate( this );
@@ -253,25 +263,58 @@ public abstract class FeatureSelectionTable {
     }
     
     
+    /**
+     * Searches the {@link FeatureSearchIndex} of the layer in a background job and
+     * restricts the table to the found features within {@link FeatureLayer#filter()}.
+     * A running search is canceled; its result is dropped even if it is already
+     * on its way to the UI thread.
+     */
     protected void doSearch() {
+        if (searchJob != null) {
+            searchJob.cancel();
+            searchJob = null;
+        }
+        int generation = ++searchGeneration;
+
         Filter filter = featureLayer.filter();
         String s = searchText.getText().getText();
-        if (!StringUtils.isBlank( s )) {
-            if (!s.contains( "*" ) && !s.contains( "?" ) ) {
-                s = s + "*";
-            }
-            for (PropertyDescriptor prop : fs.getSchema().getDescriptors()) {
-                if (String.class.isAssignableFrom( prop.getType().getBinding() )) {
-                    PropertyIsLike isLike = ff.like( ff.property( prop.getName() ), s, "*", "?", "\\" );
-                    filter = filter == Filter.INCLUDE ? isLike : ff.or( filter, isLike ); 
+        if (StringUtils.isBlank( s )) {
+            viewer.setSelection( StructuredSelection.EMPTY );
+            contentProvider.filter( filter );
+            return;
+        }
+        if (!s.contains( "*" ) && !s.contains( "?" ) ) {
+            s = s + "*";
+        }
+        String query = s;
+        searchJob = new UIJob( "Search" ) {
+            @Override
+            protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                FeatureSearchIndex searchIndex = FeatureSearchIndex.instance();
+                Filter found = searchIndex.search( featureLayer, query, monitor );
+                if (monitor.isCanceled()) {
+                    return;
                 }
+                boolean truncated = searchIndex.isTruncated( found );
+                Filter result = filter == Filter.INCLUDE ? found : ff.and( filter, found );
+                log.info( "FILTER: "  + abbreviate( result.toString(), 250 ) );
+                UIThreadExecutor.async( () -> {
+                    if (generation != searchGeneration) {
+                        log.debug( "Outdated search dropped: " + query );
+                    }
+                    else if (!viewer.getTable().isDisposed()) {
+                        searchJob = null;
+                        viewer.setSelection( StructuredSelection.EMPTY );
+                        contentProvider.filter( result );
+                        if (truncated) {
+                            tk().createSnackbar( Appearance.FadeIn, "Showing the first " 
+                                    + searchIndex.maxResults.get() + " results only" );
+                        }
+                    }
+                });
             }
-        }
-        viewer.setSelection( StructuredSelection.EMPTY );
-        log.info( "FILTER: "  + filter );
-//        FeatureCollection filtered = features.subCollection( filter );
-//        log.info( "RESULT: "  + filtered.size() );
-        contentProvider.filter( filter );
+        };
+        searchJob.schedule();
     }
     
 }
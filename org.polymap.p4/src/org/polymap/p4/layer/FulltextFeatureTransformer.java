@@ -0,0 +1,63 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.opengis.feature.Feature;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.indexing.Feature2JsonTransformer;
+import org.polymap.rhei.fulltext.indexing.FeatureTransformer;
+import org.polymap.rhei.fulltext.indexing.ToStringTransformer;
+
+/**
+ * Transforms a {@link Feature} into the JSON document of a {@link FulltextIndex}.
+ * All properties but geometries are indexed as strings. Used by the
+ * {@link FeatureSearchIndex} and the index of the atlas.
+ *
+ * @author Falko Bräutigam
+ */
+public class FulltextFeatureTransformer {
+
+    private List<FeatureTransformer>    transformers = new ArrayList();
+    
+    
+    public FulltextFeatureTransformer() {
+        transformers.add( new Feature2JsonTransformer() {
+            @Override
+            protected void addValue( String name, Object value, JSONObject result, Feature feature ) {
+                if (!(value instanceof Geometry)) {
+                    super.addValue( name, value, result, feature );
+                }
+            }
+        });
+        transformers.add( new ToStringTransformer() );
+    }
+
+
+    public JSONObject transform( Feature feature ) {
+        Object result = feature;
+        for (FeatureTransformer transformer : transformers) {
+            result = transformer.apply( result );
+        }
+        return (JSONObject)result;
+    }
+    
+}
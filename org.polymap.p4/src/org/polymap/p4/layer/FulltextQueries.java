@@ -0,0 +1,94 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import java.nio.charset.StandardCharsets;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+
+/**
+ * Helpers to build the query strings of a {@link FulltextIndex} from user input.
+ * The index just takes Lucene query strings, so user input has to be escaped or
+ * enclosed before it is combined with other clauses.
+ *
+ * @author Falko Bräutigam
+ */
+public class FulltextQueries {
+
+    /** The special chars of the Lucene query syntax, without the wildcards * and ?. */
+    public static final String      SPECIAL_CHARS = "+-!(){}[]^\"~:\\/&|";
+
+
+    /**
+     * Escapes all special chars of the Lucene query syntax, except the wildcards
+     * * and ?. The result is searched as plain text.
+     */
+    public static String escape( String text ) {
+        StringBuilder result = new StringBuilder( text.length() + 16 );
+        for (int i=0; i<text.length(); i++) {
+            char c = text.charAt( i );
+            if (SPECIAL_CHARS.indexOf( c ) > -1) {
+                result.append( '\\' );
+            }
+            result.append( c );
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * Encloses the given Lucene query in parentheses, so that it can be combined
+     * with other clauses. A query that could break out of the parentheses
+     * (unbalanced parentheses or quotes, trailing backslash) is
+     * {@link #escape(String) escaped} and searched as plain text.
+     */
+    public static String group( String query ) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i=0; i<query.length(); i++) {
+            char c = query.charAt( i );
+            if (c == '\\') {
+                if (++i == query.length()) {
+                    return "(" + escape( query ) + ")";
+                }
+            }
+            else if (c == '"') {
+                quoted = !quoted;
+            }
+            else if (!quoted && c == '(') {
+                depth ++;
+            }
+            else if (!quoted && c == ')' && --depth < 0) {
+                return "(" + escape( query ) + ")";
+            }
+        }
+        return depth == 0 && !quoted ? "(" + query + ")" : "(" + escape( query ) + ")";
+    }
+
+
+    /**
+     * Encodes the given value as one single token of lower case letters and
+     * digits. Different values always have different tokens.
+     */
+    public static String token( String value ) {
+        StringBuilder result = new StringBuilder( "x" );
+        for (byte b : value.getBytes( StandardCharsets.UTF_8 )) {
+            result.append( Character.forDigit( (b >> 4) & 0xF, 16 ) );
+            result.append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return result.toString();
+    }
+
+}
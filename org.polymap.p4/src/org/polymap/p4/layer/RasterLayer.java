@@ -21,8 +21,16 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.geometry.GeneralEnvelope;
+import org.opengis.coverage.grid.GridEnvelope;
 import org.opengis.coverage.grid.GridCoverage;
+import org.opengis.geometry.Envelope;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,6 +51,10 @@ import org.polymap.p4.catalog.AllResolver;
 /**
  * Connection to the data source of layers connected to {@link GridCoverage} (raster data).
  * There is one instance per layer per session, retrieved via {@link #of(ILayer)}.
+ * <p/>
+ * Connecting just resolves the {@link GridCoverage2DReader}. Use
+ * {@link #read(Envelope, double)} to read just the window and resolution needed,
+ * or {@link #read(int)} to read the entire coverage in a reduced resolution.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -113,8 +125,8 @@ public class RasterLayer {
     
     private GridCoverage2DReader        gridCoverageReader;
 
-    private GridCoverage2D              gridCoverage;
-    
+    private String                      resourceName;
+ 
     
     protected RasterLayer( ILayer layer ) {
         this.layer = layer;
@@ -131,7 +143,7 @@ public class RasterLayer {
 
         if (dsd.service.get() instanceof GridCoverage2DReader) { 
             gridCoverageReader = (GridCoverage2DReader)dsd.service.get();
-            gridCoverage = gridCoverageReader.read( dsd.resourceName.get(), null );
+            resourceName = dsd.resourceName.get();
         
 //            // XXX create pipeline for it
 //            Pipeline pipeline = P4PipelineIncubator.forLayer( layer )
@@ -149,8 +161,49 @@ public class RasterLayer {
     }
 
 
-    public GridCoverage2D gridCoverage() {
-        return gridCoverage;
+    /**
+     * Reads the entire coverage, reduced so that its width and height do not exceed
+     * the given number of pixels, but never finer than the native resolution. The
+     * result is cached in the {@link RasterTileCache}, see
+     * {@link #read(Envelope, double)}.
+     *
+     * @param maxSize The max width and height in pixels;
+     *        {@link Integer#MAX_VALUE} reads the native resolution.
+     */
+    public GridCoverage2D read( int maxSize ) throws Exception {
+        assert isValid();
+        GeneralEnvelope envelope = gridCoverageReader.getOriginalEnvelope( resourceName );
+        GridEnvelope gridRange = gridCoverageReader.getOriginalGridRange( resourceName );
+        double nativeResolution = Math.min( 
+                envelope.getSpan( 0 ) / gridRange.getSpan( 0 ),
+                envelope.getSpan( 1 ) / gridRange.getSpan( 1 ) );
+        double resolution = Math.max( envelope.getSpan( 0 ), envelope.getSpan( 1 ) ) / maxSize;
+        return read( envelope, Math.max( resolution, nativeResolution ) );
+    }
+
+
+    /**
+     * Reads the given window of the coverage in (about) the given resolution. The
+     * reader chooses the best matching overview, if any. The result is cached
+     * in the {@link RasterTileCache} shared by all sessions.
+     *
+     * @param envelope The window to read, in the CRS of the coverage.
+     * @param resolution The target resolution in units of the CRS per pixel.
+     */
+    public GridCoverage2D read( Envelope envelope, double resolution ) throws Exception {
+        assert isValid();
+        int width = (int)Math.max( 1, Math.ceil( envelope.getSpan( 0 ) / resolution ) );
+        int height = (int)Math.max( 1, Math.ceil( envelope.getSpan( 1 ) / resolution ) );
+        
+        String key = layer.id() + "|" + layer.resourceIdentifier.get() + "|" 
+                + envelope.getMinimum( 0 ) + "," + envelope.getMinimum( 1 ) + ","
+                + envelope.getMaximum( 0 ) + "," + envelope.getMaximum( 1 ) + "|" 
+                + width + "x" + height;
+        return RasterTileCache.instance().get( key, () -> {
+            ParameterValue<GridGeometry2D> gridGeometry = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+            gridGeometry.setValue( new GridGeometry2D( new GridEnvelope2D( 0, 0, width, height ), envelope ) );
+            return gridCoverageReader.read( resourceName, new GeneralParameterValue[] {gridGeometry} );
+        });
     }
 
 
@@ -0,0 +1,115 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import java.awt.image.RenderedImage;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.opengis.geometry.Envelope;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.polymap.core.runtime.Lazy;
+import org.polymap.core.runtime.LockedLazyInit;
+import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
+
+/**
+ * Cache of the decoded {@link GridCoverage2D} windows read by
+ * {@link RasterLayer#read(Envelope, double)} of <b>all</b> sessions. Limited by a
+ * memory budget, weighted by the (estimated) size of the raster data.
+ *
+ * @author Falko Bräutigam
+ */
+public class RasterTileCache
+        extends Configurable {
+
+    private static final Log log = LogFactory.getLog( RasterTileCache.class );
+
+    public static final Lazy<RasterTileCache> instance = new LockedLazyInit( () -> new RasterTileCache() );
+
+    public static final RasterTileCache instance() {
+        return instance.get();
+    }
+
+
+    // instance *******************************************
+
+    /** The max size of the raster data kept in memory. */
+    @Mandatory
+    @DefaultInt( 128 )
+    public Config<Integer>              memoryBudgetMB;
+
+    private Cache<String,GridCoverage2D> cache;
+
+
+    protected RasterTileCache() {
+        ConfigurationFactory.inject( this );
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight( memoryBudgetMB.get() * 1024L * 1024L )
+                .weigher( (String key, GridCoverage2D coverage) -> sizeOf( coverage ) )
+                .recordStats()
+                .build();
+    }
+
+
+    /**
+     * Returns the cached coverage for the given key, or reads it via the given
+     * loader. Concurrent callers for the same key wait for the first one to
+     * finish reading.
+     */
+    public GridCoverage2D get( String key, Callable<GridCoverage2D> loader ) throws Exception {
+        try {
+            return cache.get( key, () -> {
+                log.debug( "Reading: " + key );
+                return loader.call();
+            });
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+
+    protected static int sizeOf( GridCoverage2D coverage ) {
+        RenderedImage image = coverage.getRenderedImage();
+        long bytes = (long)image.getWidth() * image.getHeight()
+                * image.getSampleModel().getNumBands()
+                * Math.max( 1, image.getSampleModel().getSampleSize( 0 ) / 8 );
+        return (int)Math.min( bytes, Integer.MAX_VALUE );
+    }
+
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return getClass().getSimpleName() + "[size=" + cache.size()
+                + ", budget=" + FileUtils.byteCountToDisplaySize( memoryBudgetMB.get() * 1024L * 1024L )
+                + ", hits=" + stats.hitCount() + ", misses=" + stats.missCount() + "]";
+    }
+
+}
@@ -14,10 +14,23 @@
  */
 package org.polymap.p4.map;
 
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.geotools.styling.Style;
 
 import org.apache.commons.logging.Log;
@@ -35,9 +48,16 @@ import org.polymap.core.mapeditor.ILayerProvider;
 import org.polymap.core.mapeditor.MapViewer;
 import org.polymap.core.mapeditor.services.SimpleWmsServer;
 import org.polymap.core.project.ILayer;
+import org.polymap.core.project.ProjectNode.ProjectNodeCommittedEvent;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
 import org.polymap.p4.P4Plugin;
 import org.polymap.p4.catalog.AllResolver;
 import org.polymap.p4.data.P4PipelineIncubator;
+import org.polymap.p4.map.TileCache.CapturingResponse;
+import org.polymap.p4.map.TileCache.Tile;
+import org.polymap.p4.style.SerializedStyleCache;
 import org.polymap.rap.openlayers.layer.ImageLayer;
 import org.polymap.rap.openlayers.layer.Layer;
 import org.polymap.rap.openlayers.layer.TileLayer;
@@ -56,10 +76,22 @@ public class ProjectLayerProvider
 
     private static final Log log = LogFactory.getLog( ProjectLayerProvider.class );
 
+    /** The max number of idle pipelines pooled per layer. */
+    public static final int             MAX_IDLE_PIPELINES = 8;
+
     protected String                    alias;
     
     protected Map<String,ILayer>        layers = new ConcurrentHashMap();
     
+    /**
+     * Pool of idle pipelines keyed by {@link #pipelineKey(ILayer)}. Incubating a
+     * new pipeline for every tile request is expensive.
+     */
+    private ConcurrentMap<String,Queue<Pipeline>> pipelines = new ConcurrentHashMap();
+    
+    /** The pipelines borrowed by the request of the current thread. */
+    private ThreadLocal<Map<Pipeline,String>> borrowed = ThreadLocal.withInitial( () -> new IdentityHashMap() );
+    
     
     public ProjectLayerProvider() {
         try {
@@ -72,16 +104,97 @@ public class ProjectLayerProvider
                 }
                 @Override
                 protected Pipeline createPipeline( String layerName ) {
-                    return ProjectLayerProvider.this.createPipeline( layerName );
+                    return borrowPipeline( layerName );
+                }
+                @Override
+                protected void service( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException {
+                    try {
+                        Optional<String> key = tileKey( req );
+                        Optional<Tile> cached = key.isPresent() ? TileCache.instance().get( key.get() ) : Optional.empty();
+                        if (cached.isPresent()) {
+                            resp.setContentType( cached.get().contentType );
+                            resp.setContentLength( cached.get().data.length );
+                            resp.getOutputStream().write( cached.get().data );
+                        }
+                        else if (key.isPresent()) {
+                            CapturingResponse capturing = new CapturingResponse( resp );
+                            super.service( req, capturing );
+                            capturing.tile().ifPresent( tile -> TileCache.instance().put( key.get(), tile ) );
+                        }
+                        else {
+                            super.service( req, resp );
+                        }
+                    }
+                    finally {
+                        releasePipelines();
+                    }
                 }
             }, null, null );
         }
         catch (Exception e) {
             throw new RuntimeException( e );
         }
+        
+        EventManager.instance().subscribe( this, ifType( ProjectNodeCommittedEvent.class, ev ->
+                layers.values().stream().anyMatch( l -> l.id().equals( ev.getEntityId() ) ) ) );
     }
 
     
+    /**
+     * Returns an idle pipeline for the given layer from the {@link #pipelines}
+     * pool, or {@link #createPipeline(String) creates} a new one. The pipeline is
+     * used by the current request exclusively and is returned to the pool by
+     * {@link #releasePipelines()} when the request is done.
+     */
+    protected Pipeline borrowPipeline( String layerName ) {
+        ILayer layer = layers.get( layerName );
+        String key = layer != null ? pipelineKey( layer ) : null;
+        Queue<Pipeline> idle = key != null ? pipelines.get( key ) : null;
+        Pipeline result = idle != null ? idle.poll() : null;
+        if (result == null) {
+            result = createPipeline( layerName );
+        }
+        if (result != null && key != null) {
+            borrowed.get().put( result, key );
+        }
+        return result;
+    }
+    
+    
+    /**
+     * Returns the pipelines borrowed by the current thread to the pool.
+     */
+    protected void releasePipelines() {
+        Map<Pipeline,String> current = borrowed.get();
+        for (Map.Entry<Pipeline,String> entry : current.entrySet()) {
+            Queue<Pipeline> idle = pipelines.computeIfAbsent( entry.getValue(), key -> new ConcurrentLinkedQueue() );
+            if (idle.size() < MAX_IDLE_PIPELINES) {
+                idle.offer( entry.getKey() );
+            }
+        }
+        current.clear();
+    }
+    
+    
+    /**
+     * The key of the pipelines of the given layer in the {@link #pipelines} pool.
+     * Pipelines depend on the data source and the style of the layer.
+     */
+    protected String pipelineKey( ILayer layer ) {
+        return layer.id() + "|" + layer.styleIdentifier.get();
+    }
+    
+    
+    /**
+     * Flushes the pooled pipelines of a modified layer. 
+     */
+    @EventHandler( scope=Event.Scope.JVM )
+    protected void onLayerCommit( ProjectNodeCommittedEvent ev ) {
+        String prefix = ev.getEntityId() + "|";
+        pipelines.keySet().removeIf( key -> key.startsWith( prefix ) );
+    }
+    
+    
     protected Pipeline createPipeline( String layerName ) {
         try {
             ILayer layer = layers.get( layerName );
@@ -95,7 +208,7 @@ public class ProjectLayerProvider
             Supplier<Style> styleSupplier = () -> {
                 String styleId = layer.styleIdentifier.get();
                 return styleId != null
-                    ? P4Plugin.styleRepo().serializedFeatureStyle( styleId, Style.class ).get()
+                    ? SerializedStyleCache.instance().serializedFeatureStyle( styleId ).get()
                     : DefaultStyles.createAllStyle();
             };
 
@@ -113,6 +226,44 @@ public class ProjectLayerProvider
     }
 
 
+    /**
+     * The {@link TileCache} key of the given request.
+     *
+     * @return The key, or {@link Optional#empty()} if the response to the request
+     *         must not be cached.
+     */
+    protected Optional<String> tileKey( HttpServletRequest req ) {
+        Map<String,String[]> params = req.getParameterMap();
+        String request = null, layerName = null;
+        for (Map.Entry<String,String[]> param : params.entrySet()) {
+            if (param.getKey().equalsIgnoreCase( "REQUEST" )) {
+                request = param.getValue()[0];
+            }
+            else if (param.getKey().equalsIgnoreCase( "LAYERS" )) {
+                layerName = param.getValue()[0];
+            }
+        }
+        ILayer layer = layerName != null ? layers.get( layerName ) : null;
+        if (layer == null || !"GetMap".equalsIgnoreCase( request )) {
+            return Optional.empty();
+        }
+        return tileState( layer ).map( state -> TileCache.instance().key( layer, state, params ) );
+    }
+    
+    
+    /**
+     * The state of the current session that the rendered tiles of the given layer
+     * depend on, in addition to the layer content, the style and the request
+     * params. Sub-classes that modify the pipeline have to override.
+     *
+     * @return The state, or {@link Optional#empty()} if tiles of the given layer
+     *         must not be cached.
+     */
+    protected Optional<String> tileState( ILayer layer ) {
+        return Optional.of( "" );
+    }
+
+
     @Override
     public Layer getLayer( ILayer elm ) {
         String layerName = elm.label.get();
@@ -155,6 +306,8 @@ public class ProjectLayerProvider
 
     @Override
     public void close() {
+        EventManager.instance().unsubscribe( this );
+        pipelines.clear();
         if (alias != null) {
             P4Plugin.instance().httpService().unregister( alias );
             alias = null;
@@ -16,31 +16,26 @@ package org.polymap.p4.map;
 
 import static org.polymap.core.runtime.event.TypeEventFilter.isType;
 import static org.polymap.core.ui.FormDataFactory.on;
-import static org.polymap.p4.layer.FeatureLayer.ff;
 
+import java.util.Optional;
 import java.util.function.Consumer;
 
 import org.geotools.data.FeatureStore;
-import org.geotools.feature.FeatureCollection;
-import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.json.JSONArray;
 import org.opengis.feature.Feature;
-import org.opengis.filter.Filter;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Composite;
 
-import org.polymap.core.data.Features;
 import org.polymap.core.data.util.Geometries;
 import org.polymap.core.mapeditor.MapViewer;
 import org.polymap.core.project.ILayer;
@@ -66,6 +61,7 @@ import org.polymap.p4.Messages;
 import org.polymap.p4.P4AppDesign;
 import org.polymap.p4.P4Panel;
 import org.polymap.p4.P4Plugin;
+import org.polymap.p4.layer.FeatureHitIndex;
 import org.polymap.p4.layer.FeatureSelectionTable;
 import org.polymap.p4.layer.LayersCatalogsPanel;
 import org.polymap.p4.project.ProjectRepository;
@@ -251,18 +247,13 @@ public class ProjectMapPanel
         CoordinateReferenceSystem dataCrs = fs.getSchema().getCoordinateReferenceSystem();
         buffered = buffered.transform( dataCrs, true );
 
-        // get feature
-        Filter filter = ff.intersects( ff.property( "" ), ff.literal( JTS.toGeometry( (Envelope)buffered ) ) );
-        FeatureCollection selected = fs.getFeatures( filter );
-        if (selected.isEmpty()) {
+        // get feature: candidates from the spatial index, exact check on the candidates
+        Optional<Feature> any = FeatureHitIndex.instance().hit( featureLayer.get(), buffered );
+        if (!any.isPresent()) {
             return; // nothing found
         }
-        if (selected.size() > 1) {
-            log.info( "Multiple features found: " + selected.size() );
-        }
-        Feature any = (Feature)Features.stream( selected ).findAny().get();
-        featureLayer.get().setClicked( any );
-        log.info( "clicked: " + any );
+        featureLayer.get().setClicked( any.get() );
+        log.info( "clicked: " + any.get() );
     }
 
     
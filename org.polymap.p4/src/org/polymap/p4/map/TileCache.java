@@ -0,0 +1,382 @@
+/*
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.geotools.data.FeatureEvent;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.hash.Hashing;
+
+import org.polymap.core.CorePlugin;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.project.ProjectNode.ProjectNodeCommittedEvent;
+import org.polymap.core.runtime.Lazy;
+import org.polymap.core.runtime.LockedLazyInit;
+import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.Configurable;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.config.Mandatory;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.layer.FeatureLayer;
+import org.polymap.p4.style.SerializedStyleCache;
+
+/**
+ * Cache of the tiles rendered by the WMS servlets of the
+ * {@link ProjectLayerProvider}s of <b>all</b> sessions. Tiles are kept in memory
+ * and spilled to disk when evicted from memory. Both levels are LRU and limited by
+ * a size budget.
+ * <p/>
+ * Tiles are keyed by layer, revision of the layer, style, revision of the style
+ * and the request params (SRS, BBOX, WIDTH, HEIGHT, FORMAT, ...). A
+ * {@link FeatureEvent} commit or a {@link ProjectNodeCommittedEvent} of the layer
+ * just increments the revision of the layer. The revision of the style is the
+ * one of the {@link SerializedStyleCache}. Outdated tiles are no longer found
+ * and get evicted eventually.
+ *
+ * @author Falko Bräutigam
+ */
+public class TileCache
+        extends Configurable {
+
+    private static final Log log = LogFactory.getLog( TileCache.class );
+
+    public static final Lazy<TileCache> instance = new LockedLazyInit( () -> new TileCache() );
+
+    public static final TileCache instance() {
+        return instance.get();
+    }
+
+    /**
+     * A rendered tile.
+     */
+    public static class Tile {
+
+        public String       contentType;
+
+        public byte[]       data;
+
+        public Tile( String contentType, byte[] data ) {
+            this.contentType = contentType;
+            this.data = data;
+        }
+    }
+
+
+    // instance *******************************************
+
+    /** The max size of the tiles kept in memory. */
+    @Mandatory
+    @DefaultInt( 64 )
+    public Config<Integer>              memoryBudgetMB;
+
+    /** The max size of the tiles kept on disk. */
+    @Mandatory
+    @DefaultInt( 1024 )
+    public Config<Integer>              diskBudgetMB;
+
+    private File                        cacheDir;
+
+    /** Access ordered: LRU first. Guarded by this. */
+    private LinkedHashMap<String,Tile>  memory = new LinkedHashMap( 1024, 0.75f, true );
+
+    private long                        memorySize;
+
+    /** The tiles on disk. Access ordered: LRU first. Guarded by this. */
+    private LinkedHashMap<String,DiskEntry> disk = new LinkedHashMap( 1024, 0.75f, true );
+
+    private long                        diskSize;
+
+    /** Revisions of layers, by layer id. */
+    private ConcurrentMap<String,AtomicLong> revisions = new ConcurrentHashMap();
+
+    /** Makes the names of the tile files unique, see {@link DiskEntry#file}. */
+    private AtomicLong                  fileCount = new AtomicLong();
+
+    private AtomicLong                  hits = new AtomicLong();
+
+    private AtomicLong                  misses = new AtomicLong();
+
+
+    protected TileCache() {
+        ConfigurationFactory.inject( this );
+
+        // the revisions are kept in memory only, tiles of a previous run cannot
+        // be validated; start with an empty dir
+        cacheDir = new File( CorePlugin.getDataLocation( P4Plugin.instance() ), "tiles" );
+        FileUtils.deleteQuietly( cacheDir );
+        cacheDir.mkdirs();
+
+        EventManager.instance().subscribe( this, ev ->
+                ev instanceof ProjectNodeCommittedEvent ||
+                ev instanceof FeatureEvent
+                        && ((FeatureEvent)ev).getType() == FeatureEvent.Type.COMMIT
+                        && FeatureLayer.layerIdOf( ((FeatureEvent)ev).getFeatureSource() ).isPresent() );
+    }
+
+
+    @EventHandler( scope=Event.Scope.JVM )
+    protected void onFeatureCommit( FeatureEvent ev ) {
+        FeatureLayer.layerIdOf( ev.getFeatureSource() ).ifPresent( layerId -> increment( layerId ) );
+    }
+
+
+    /**
+     * The layer itself was changed, for example its resourceIdentifier or
+     * styleIdentifier.
+     */
+    @EventHandler( scope=Event.Scope.JVM )
+    protected void onLayerCommit( ProjectNodeCommittedEvent ev ) {
+        increment( (String)ev.getEntityId() );
+    }
+
+
+    protected void increment( String id ) {
+        long revision = revisions.computeIfAbsent( id, key -> new AtomicLong() ).incrementAndGet();
+        log.debug( "Invalidated: " + id + " -> revision: " + revision );
+    }
+
+
+    protected long revision( String id ) {
+        AtomicLong result = revisions.get( id );
+        return result != null ? result.get() : 0;
+    }
+
+
+    /**
+     * Builds the key of a tile of the given layer.
+     *
+     * @param layer The layer the tile is rendered for.
+     * @param state Additional state of the session the rendered tile depends on.
+     * @param params The params of the request.
+     */
+    public String key( ILayer layer, String state, Map<String,String[]> params ) {
+        String styleId = layer.styleIdentifier.get();
+        StringBuilder result = new StringBuilder( 256 )
+                .append( layer.id() ).append( ':' ).append( revision( (String)layer.id() ) ).append( '|' )
+                .append( styleId ).append( ':' ).append( styleId != null ? SerializedStyleCache.instance().revision( styleId ) : 0 ).append( '|' )
+                .append( state );
+        // sorted and case insensitive
+        Map<String,String[]> sorted = new TreeMap( String.CASE_INSENSITIVE_ORDER );
+        sorted.putAll( params );
+        for (Map.Entry<String,String[]> param : sorted.entrySet()) {
+            result.append( '|' ).append( param.getKey().toUpperCase() ).append( '=' )
+                    .append( Arrays.toString( param.getValue() ) );
+        }
+        return result.toString();
+    }
+
+
+    public Optional<Tile> get( String key ) {
+        Tile result = null;
+        DiskEntry onDisk = null;
+        synchronized (this) {
+            result = memory.get( key );
+            onDisk = result == null ? disk.get( key ) : null;
+        }
+        if (result == null && onDisk != null) {
+            try {
+                result = new Tile( onDisk.contentType, Files.readAllBytes( onDisk.file.toPath() ) );
+                put( key, result );
+            }
+            catch (IOException e) {
+                // concurrently evicted
+                log.debug( "Tile file not found: " + e );
+            }
+        }
+        (result != null ? hits : misses).incrementAndGet();
+        return Optional.ofNullable( result );
+    }
+
+
+    public void put( String key, Tile tile ) {
+        // evict from memory
+        List<Map.Entry<String,Tile>> evicted = new ArrayList();
+        synchronized (this) {
+            Tile previous = memory.put( key, tile );
+            memorySize += tile.data.length - (previous != null ? previous.data.length : 0);
+
+            long budget = memoryBudgetMB.get() * 1024L * 1024L;
+            for (Iterator<Map.Entry<String,Tile>> it=memory.entrySet().iterator(); memorySize > budget && it.hasNext(); ) {
+                Map.Entry<String,Tile> eldest = it.next();
+                it.remove();
+                memorySize -= eldest.getValue().data.length;
+                if (!disk.containsKey( eldest.getKey() )) {
+                    evicted.add( eldest );
+                }
+            }
+        }
+        // spill to disk
+        for (Map.Entry<String,Tile> entry : evicted) {
+            try {
+                // every entry has its own file, so deleting the file of an evicted
+                // entry never hits a file that was spilled again for the same key
+                DiskEntry diskEntry = new DiskEntry( entry.getValue().contentType, entry.getValue().data.length, file( entry.getKey() ) );
+                Files.write( diskEntry.file.toPath(), entry.getValue().data );
+                List<DiskEntry> deleted = new ArrayList();
+                synchronized (this) {
+                    DiskEntry previous = disk.put( entry.getKey(), diskEntry );
+                    diskSize += diskEntry.size;
+                    if (previous != null) {
+                        diskSize -= previous.size;
+                        deleted.add( previous );
+                    }
+                    long budget = diskBudgetMB.get() * 1024L * 1024L;
+                    for (Iterator<Map.Entry<String,DiskEntry>> it=disk.entrySet().iterator(); diskSize > budget && it.hasNext(); ) {
+                        Map.Entry<String,DiskEntry> eldest = it.next();
+                        it.remove();
+                        diskSize -= eldest.getValue().size;
+                        deleted.add( eldest.getValue() );
+                    }
+                }
+                deleted.forEach( deletedEntry -> deletedEntry.file.delete() );
+            }
+            catch (IOException e) {
+                log.warn( "Unable to spill tile to disk: " + e );
+            }
+        }
+    }
+
+
+    /**
+     * A new, unique file for a tile with the given key.
+     */
+    protected File file( String key ) {
+        return new File( cacheDir, Hashing.sha1().hashString( key, StandardCharsets.UTF_8 ).toString() 
+                + "." + fileCount.incrementAndGet() );
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[memory=" + memory.size() + "/" + FileUtils.byteCountToDisplaySize( memorySize )
+                + ", disk=" + disk.size() + "/" + FileUtils.byteCountToDisplaySize( diskSize )
+                + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+
+
+    /**
+     * A tile spilled to disk.
+     */
+    protected static class DiskEntry {
+
+        public String       contentType;
+
+        public long         size;
+
+        /** The file of just this entry. */
+        public File         file;
+
+        public DiskEntry( String contentType, long size, File file ) {
+            this.contentType = contentType;
+            this.size = size;
+            this.file = file;
+        }
+    }
+
+
+    /**
+     * Passes the content written to the response through and captures a copy for
+     * the cache.
+     */
+    public static class CapturingResponse
+            extends HttpServletResponseWrapper {
+
+        private ByteArrayOutputStream   captured = new ByteArrayOutputStream( 32 * 1024 );
+
+        private ServletOutputStream     out;
+
+
+        public CapturingResponse( HttpServletResponse delegate ) {
+            super( delegate );
+        }
+
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                ServletOutputStream delegate = super.getOutputStream();
+                out = new ServletOutputStream() {
+                    @Override
+                    public void write( int b ) throws IOException {
+                        delegate.write( b );
+                        captured.write( b );
+                    }
+                    @Override
+                    public void write( byte[] b, int off, int len ) throws IOException {
+                        delegate.write( b, off, len );
+                        captured.write( b, off, len );
+                    }
+                    @Override
+                    public void flush() throws IOException {
+                        delegate.flush();
+                    }
+                    @Override
+                    public boolean isReady() {
+                        return delegate.isReady();
+                    }
+                    @Override
+                    public void setWriteListener( WriteListener l ) {
+                        delegate.setWriteListener( l );
+                    }
+                };
+            }
+            return out;
+        }
+
+
+        /**
+         * The captured tile, or {@link Optional#empty()} if the response was not
+         * a successfully rendered image.
+         */
+        public Optional<Tile> tile() {
+            String contentType = getContentType();
+            return getStatus() == SC_OK && captured.size() > 0 && contentType != null && contentType.startsWith( "image/" )
+                    ? Optional.of( new Tile( contentType, captured.toByteArray() ) )
+                    : Optional.empty();
+        }
+    }
+
+}
@@ -125,7 +125,7 @@ public class CoordinateSupplier
                 protected void onClick( Coordinate coordinate ) {
                     try {
                         CoordinateReferenceSystem layerCrs = RasterLayer.of( site.layer.get() ).get().get()
-                                .gridCoverage().getCoordinateReferenceSystem();
+                                .gridCoverageReader().getCoordinateReferenceSystem();
                         
                         MathTransform transform = Geometries.transform( 
                                 maxExtent.get().getCoordinateReferenceSystem(),
@@ -199,6 +199,7 @@ public class LayerRasterConsumer
                 }
             });
             update.commit();
+            AllResolver.instance().catalogUpdated();
             return service.get();
         }
     }
@@ -135,7 +135,8 @@ public class LayerRasterSupplier
 
             Class<?> fieldType = site.fieldInfo.get().type.get();
             if (fieldType.isAssignableFrom( GridCoverage2D.class )) {
-                site.setFieldValue( rl.gridCoverage() );                
+                // native resolution: the process works on the actual data
+                site.setFieldValue( rl.read( Integer.MAX_VALUE ) );                
             }
             else if (fieldType.isAssignableFrom( GridCoverage2DReader.class )) {
                 site.setFieldValue( rl.gridCoverageReader() );                
@@ -14,6 +14,9 @@
  */
 package org.polymap.p4.style;
 
+import java.util.concurrent.CompletionException;
+
+import org.geotools.coverage.grid.GridCoverage2D;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -52,6 +55,9 @@ public class LayerStyleDashlet
 
     private static final Log log = LogFactory.getLog( LayerStyleDashlet.class );
     
+    /** The max width/height of the coverage the raster styler gets to analyse. */
+    public static final int             RASTER_PREVIEW_SIZE = 1024;
+    
     /** Inbound: */
     @Scope( P4Plugin.Scope )
     private Context<ILayer>             layer;
@@ -138,6 +144,15 @@ public class LayerStyleDashlet
         
         // RasterLayer?
         RasterLayer.of( layer.get() ).thenAccept( rl -> {
+            // read a reduced coverage, outside the UI thread
+            GridCoverage2D preview = null;
+            try {
+                preview = rl.isPresent() ? rl.get().read( RASTER_PREVIEW_SIZE ) : null;
+            }
+            catch (Exception e) {
+                throw new CompletionException( e );
+            }
+            GridCoverage2D gridCoverage = preview;
             UIThreadExecutor.async( () -> {
                 if (rl.isPresent()) {
                     UIUtils.disposeChildren( parent );
@@ -145,7 +160,7 @@ public class LayerStyleDashlet
                         RasterStyleEditorInput editorInput = new RasterStyleEditorInput();
                         editorInput.styleIdentifier.set( layer.get().styleIdentifier.get() ); 
                         editorInput.gridCoverageReader.set( rl.get().gridCoverageReader() );
-                        editorInput.gridCoverage.set( rl.get().gridCoverage() );
+                        editorInput.gridCoverage.set( gridCoverage );
                         
                         editor = new RasterStyleEditor( editorInput ) {
                             @Override
@@ -0,0 +1,148 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2017, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.style;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.styling.Style;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.runtime.Lazy;
+import org.polymap.core.runtime.LockedLazyInit;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+import org.polymap.core.style.model.FeatureStyle;
+import org.polymap.core.style.model.FeatureStyleCommitedEvent;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * Caches the GeoTools {@link Style}s serialized from the {@link FeatureStyle}s of
+ * the {@link P4Plugin#styleRepo()}. Serializing the style model is too expensive
+ * to be done for every rendering request.
+ * <p/>
+ * Entries are keyed by style id and revision of the style. The revision is
+ * incremented on every {@link FeatureStyleCommitedEvent}, which is fired when the
+ * {@link StyleEditor} of {@link LayerStyleDashlet} or {@link LayerStylePanel}
+ * stores the style.
+ *
+ * @author Falko Bräutigam
+ */
+public class SerializedStyleCache {
+
+    private static final Log log = LogFactory.getLog( SerializedStyleCache.class );
+    
+    public static final Lazy<SerializedStyleCache> instance = new LockedLazyInit( () -> new SerializedStyleCache() );
+    
+    public static final SerializedStyleCache instance() {
+        return instance.get();
+    }
+    
+    
+    // instance *******************************************
+
+    private ConcurrentMap<String,CachedStyle>   cache = new ConcurrentHashMap();
+    
+    private ConcurrentMap<String,AtomicLong>    revisions = new ConcurrentHashMap();
+    
+    
+    protected SerializedStyleCache() {
+        EventManager.instance().subscribe( this, ifType( FeatureStyleCommitedEvent.class, ev -> true ) );
+    }
+    
+    
+    @EventHandler( scope=Event.Scope.JVM )
+    protected void onStyleCommit( FeatureStyleCommitedEvent ev ) {
+        String styleId = (String)ev.getSource().id();
+        revisions.computeIfAbsent( styleId, key -> new AtomicLong() ).incrementAndGet();
+        cache.remove( styleId );
+        log.debug( "Flushed: " + styleId );
+    }
+    
+    
+    /**
+     * The revision of the given style. Incremented every time the style is
+     * committed. Also used to key the tiles of the {@link org.polymap.p4.map.TileCache}.
+     */
+    public long revision( String styleId ) {
+        AtomicLong result = revisions.get( styleId );
+        return result != null ? result.get() : 0;
+    }
+    
+    
+    /**
+     * The serialized {@link Style} of the given style id. The returned instance is
+     * shared and must not be modified.
+     *
+     * @param styleId The id of the {@link FeatureStyle}.
+     * @return The serialized style, or {@link Optional#empty()} if there is no
+     *         such style in the repository.
+     */
+    public Optional<Style> serializedFeatureStyle( String styleId ) {
+        // revision is determined before serializing; a concurrent commit results
+        // in an outdated entry that is never returned
+        long revision = revision( styleId );
+        CachedStyle entry = cache.compute( styleId, (key, current) -> {
+            return current != null && current.revision >= revision ? current : new CachedStyle( revision );
+        });
+        // serialize outside the lock of the map
+        if (entry.claimed.compareAndSet( false, true )) {
+            try {
+                entry.style.complete( P4Plugin.styleRepo().serializedFeatureStyle( styleId, Style.class ) );
+            }
+            catch (Throwable e) {
+                cache.remove( styleId, entry );
+                entry.style.completeExceptionally( e );
+            }
+        }
+        try {
+            return entry.style.join();
+        }
+        catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+        }
+    }
+    
+    
+    /**
+     * 
+     */
+    protected static class CachedStyle {
+        
+        public long             revision;
+        
+        /** The serialized style; completed by the caller that claimed it. */
+        public CompletableFuture<Optional<Style>> style = new CompletableFuture();
+        
+        /** Set by the caller that serializes the style. */
+        public AtomicBoolean    claimed = new AtomicBoolean();
+
+        public CachedStyle( long revision ) {
+            this.revision = revision;
+        }
+    }
+    
+}